@@ -1,17 +1,17 @@
 package controller;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
+import java.io.IOException;
+import java.util.Arrays;
 
-import javax.swing.tree.DefaultMutableTreeNode;
-
-import model.Move;
-import model.Node;
+import model.PackedMove;
 import model.Piece;
 import model.PieceArray;
+import model.Position;
+import model.PositionSnapshot;
 import utils.Constants;
 import utils.Log;
+import utils.Constants.GameStatus;
+import utils.Constants.MobilityMode;
 
 
 public class AI {
@@ -23,66 +23,156 @@ public class AI {
 	int nodesVisited = 0;
 	int depth;
 	long initTime = 0;
-	Node bestNode;
-	ArrayList<Node> localPV;
-	ArrayList<Node> masterPV = new ArrayList<Node>();
-	ArrayList<ArrayList<Move>> killerMoves = new ArrayList<ArrayList<Move>>(
-			Constants.getDepth() + 1);
-	Node[] PV;
+	int bestMove;
+
+	// Private copy of the game position that the search plays moves on
+	Position position;
+	BitboardMoveGenerator generator = new BitboardMoveGenerator();
+
+	// One preallocated move list (and matching ordering keys) per ply, so the
+	// search never allocates while generating moves
+	int[][] moveBuffers = new int[Position.MAX_PLY][BitboardMoveGenerator.MAX_MOVES];
+	int[][] scoreBuffers = new int[Position.MAX_PLY][BitboardMoveGenerator.MAX_MOVES];
+	int[] opponentMoves = new int[BitboardMoveGenerator.MAX_MOVES];
+
+	// One staged move picker per ply for pvSearch
+	MovePicker[] movePickers = new MovePicker[Position.MAX_PLY];
+
+	// Interior nodes searched and the moves generated at them. When
+	// collectMoveStats is set, the moves a full generation would have
+	// produced at the same nodes are counted too, for comparison.
+	long searchNodes = 0;
+	long movesGenerated = 0;
+	long movesAvailable = 0;
+	boolean collectMoveStats = false;
+
+	// Stop at fifty move and insufficient material draws. Only turned off
+	// to measure what it saves.
+	boolean recognizeDraws = true;
+
+	// Two killer moves per ply
+	int[][] killerMoves = new int[Position.MAX_PLY][2];
+
+	// Results of earlier searches by position, made on the first search
+	// unless one was handed in to share
+	TranspositionTable transpositionTable;
+	TranspositionTable.Probe tableProbe = new TranspositionTable.Probe();
+
+	// Lazy SMP. With more than one search thread configured, helpers run
+	// the same iterative deepening on their own copies of the position while
+	// the main search runs, sharing nothing but the transposition table. Every
+	// other helper starts and ends one ply deeper, so the threads drift out of
+	// step and fill the table with results the others can use. Only the main
+	// search's move is played.
+	AI[] helpers = new AI[0];
+	boolean isHelper = false;
+	int depthOffset = 0;
+	volatile boolean stopped = false;
+
+	// When set, the root only searches these moves. A cluster worker is
+	// handed its share of the root this way.
+	int[] rootMoves;
+
+	// Score of the best root move of the last search
+	double bestScore;
+
+	// Worker processes the search is spread over when
+	// Constants.getClusterWorkers is above zero
+	ClusterCoordinator cluster;
+
+	// Width of the zero window of the principal variation search
+	private final static double nullWindow = 0.00000001;
+
+	// Scores this close to mate depend on the ply they were found at, and
+	// are stored in the transposition table relative to the node
+	private final static double mateThreshold = Constants.getCheckMateScore()
+			- Position.MAX_PLY;
+
+	// Triangular principal variation table, filled in as the search returns
+	int[][] pvTable = new int[Position.MAX_PLY][Position.MAX_PLY];
+	int[] pvLength = new int[Position.MAX_PLY];
+	int[] masterPV = new int[Position.MAX_PLY];
+	int masterPVLength = 0;
+	boolean followPV = false;
+
+	// Size of the table perft caches transposed subtree counts in
+	int perftTableMegabytes = 16;
+
 	int nodesPerLevel[];
 	boolean isNullMoveBranch = false;
-	static NodeComparator nodeComparator;
 	boolean isThinking = false;
 	int branchCounter;
 	int numBranches;
 
+	// Material weight of each piece type, indexed by Position piece type
+	static final int[] pieceWeights = { Constants.getPawnweight(),
+			Constants.getKnightweight(), Constants.getBishopweight(),
+			Constants.getRookweight(), Constants.getQueenweight(),
+			Constants.getKingweight() };
+
+	// Move ordering keys, lowest is searched first
+	private static final int pvMoveOrderKey = -1000000;
+	private static final int killerMoveOrderKey = -1;
+	private static final int quietMoveOrderKey = 10000;
+
 	/**
 	 * Constructor
-	 * 
+	 *
 	 * @param controllerIn
 	 */
 	public AI(Controller controllerIn) {
 		this.controller = controllerIn;
-
-		for (int i = 0; i < Constants.getDepth() + 1; i++)
-			killerMoves.add(new ArrayList<Move>());
-
-		PV = new Node[10];
-		this.nodeComparator = new NodeComparator();
-
-		// Initialization
-		for (int i = 0; i < 10; i++)
-			PV[i] = null;
-
 		nodesPerLevel = new int[20];
+		for (int i = 0; i < Position.MAX_PLY; i++)
+			movePickers[i] = new MovePicker(generator);
 	}
 
 	/**
-	 * This method calls the choose move method and returns the result.
-	 * 
-	 * @param isWhiteTurn
-	 * @return
+	 * This method calls the choose move method and returns the result, for
+	 * the side to move in <code>snapshot</code>. The search runs on a private
+	 * position inflated from the snapshot, so the game model is never touched
+	 * and does not need to be locked while the AI thinks.
+	 *
+	 * @param snapshot
+	 * @return the chosen move, packed (see PackedMove)
 	 */
-	public Node move(boolean isWhiteTurn) {
-		Node node = null;
+	public int move(PositionSnapshot snapshot) {
 		isThinking = true;
 
+		position = snapshot.toPosition();
+		// Only the top level search uses the cluster. Helpers and cluster
+		// workers search locally.
+		if (!isHelper && rootMoves == null
+				&& Constants.getClusterWorkers() > 0 && clusterMove(snapshot)) {
+			isThinking = false;
+			return bestMove;
+		}
+		if (transpositionTable == null)
+			transpositionTable = new TranspositionTable(Constants.getHashSizeMB());
+
+		// Age the table before any helper can store into it. Starting their
+		// threads afterwards makes the new age visible to them.
+		if (!isHelper)
+			transpositionTable.newSearch();
+		Thread[] helperThreads = startHelpers(snapshot);
+
 		// The real method that generates and evaluates moves
-		chooseMove(isWhiteTurn);
+		chooseMove(position.getSideToMove() == Position.WHITE);
+
+		stopHelpers(helperThreads);
 
-		node = bestNode;
 		nodesVisited = 0;
 
 		// Set flag back to false since we've picked the move we want.
 		isThinking = false;
-		return node;
+		return bestMove;
 	}
 
 	/**
 	 * This method deepens iteratively and calls the pvSearch method, building
 	 * up the masterPV array with the most probably variation, and then returns
 	 * the first move in that sequence.
-	 * 
+	 *
 	 * @param isWhiteTurn
 	 */
 	public void chooseMove(boolean isWhiteTurn) {
@@ -93,30 +183,175 @@ public class AI {
 
 		// Reset Branch counter
 		branchCounter = 0;
-		Node parentNode = controller.gameTreeController.root;
+		bestMove = PackedMove.NO_MOVE;
+		masterPVLength = 0;
+		searchNodes = 0;
+		movesGenerated = 0;
+		movesAvailable = 0;
 
 		initializeKillerMoveArrays();
 
 		// Iterative deepening loop
-		for (int depth = 1; depth <= Constants.getDepth(); depth++) {
+		for (int depth = 1 + depthOffset; depth <= Constants.getDepth()
+				+ depthOffset; depth++) {
 			this.depth = depth;
 
-			if (depth == Constants.getDepth()) {
-				numBranches = parentNode.getChildren().size();
+			// Call the real search method, trying the last PV first
+			followPV = true;
+			double score = pvSearch(alpha, beta, depth, 0);
+
+			// A helper stopped halfway has no complete PV to keep
+			if (stopped)
+				break;
+			bestScore = score;
+
+			masterPVLength = pvLength[0];
+			System.arraycopy(pvTable[0], 0, masterPV, 0, masterPVLength);
+		}
+
+		// The first move in the PV is the one we've chosen
+		if (masterPVLength > 0)
+			bestMove = masterPV[0];
+
+		if (!isHelper) {
+			log.info(getSearchStats());
+			log.info(transpositionTable.getStats());
+		}
+	}
+
+	/**
+	 * Starts one thread per helper search on <code>snapshot</code>, making the
+	 * helpers first if the number of search threads has changed. A helper
+	 * never has helpers of its own.
+	 *
+	 * @param snapshot
+	 * @return the started threads
+	 */
+	private Thread[] startHelpers(final PositionSnapshot snapshot) {
+		int numHelpers = isHelper ? 0 : Constants.getSearchThreads() - 1;
+		if (helpers.length != numHelpers) {
+			helpers = new AI[numHelpers];
+			for (int i = 0; i < numHelpers; i++) {
+				helpers[i] = new AI(null);
+				helpers[i].isHelper = true;
+				helpers[i].depthOffset = (i + 1) % 2;
 			}
+		}
 
-			// Call the real search method
-			pvSearch(alpha, beta, depth, isWhiteTurn, parentNode);
+		Thread[] threads = new Thread[numHelpers];
+		for (int i = 0; i < numHelpers; i++) {
+			final AI helper = helpers[i];
+			helper.setTranspositionTable(transpositionTable);
+			helper.rootMoves = rootMoves;
+			helper.stopped = false;
+			threads[i] = new Thread(new Runnable() {
+				public void run() {
+					helper.move(snapshot);
+				}
+			}, "AI helper " + (i + 1));
+			threads[i].start();
+		}
+		return threads;
+	}
 
-			masterPV = new ArrayList<Node>();
-			masterPV.addAll(this.localPV);
+	/**
+	 * Has the cluster workers search <code>snapshot</code>, starting them
+	 * first if the number of workers has changed, and sets bestMove and
+	 * bestScore to their result. If the workers can't be started or one of
+	 * them fails, they are shut down and false is returned, so the caller can
+	 * search locally instead.
+	 *
+	 * @param snapshot
+	 * @return true if the cluster found the move
+	 */
+	private boolean clusterMove(PositionSnapshot snapshot) {
+		try {
+			if (cluster != null
+					&& cluster.getNumWorkers() != Constants.getClusterWorkers()) {
+				cluster.close();
+				cluster = null;
+			}
+			if (cluster == null)
+				cluster = new ClusterCoordinator(Constants.getClusterWorkers());
+			bestMove = cluster.search(snapshot, Constants.getDepth());
+			bestScore = cluster.getBestScore();
+			log.info(cluster.getStats());
+			return true;
+		} catch (IOException e) {
+			log.error("AI.clusterMove: cluster search failed, searching locally: "
+					+ e.getMessage());
+			if (cluster != null)
+				cluster.close();
+			cluster = null;
+			return false;
+		}
+	}
 
+	/**
+	 * Restricts the root of later searches to the first <code>numMoves</code>
+	 * of <code>moves</code>, which must be legal in the position searched.
+	 * Passing null searches every move again.
+	 *
+	 * @param moves
+	 * @param numMoves
+	 */
+	public void setRootMoves(int[] moves, int numMoves) {
+		rootMoves = moves == null ? null : Arrays.copyOf(moves, numMoves);
+	}
+
+	/**
+	 * Returns true if the root may search <code>move</code>.
+	 *
+	 * @param move
+	 * @return
+	 */
+	private boolean isRootMove(int move) {
+		if (rootMoves == null)
+			return true;
+		for (int i = 0; i < rootMoves.length; i++)
+			if (rootMoves[i] == move)
+				return true;
+		return false;
+	}
+
+	public double getBestScore() {
+		return bestScore;
+	}
+
+	/**
+	 * Tells every helper to give up its search and waits for its thread to
+	 * finish.
+	 *
+	 * @param threads
+	 */
+	private void stopHelpers(Thread[] threads) {
+		for (int i = 0; i < threads.length; i++)
+			helpers[i].stopped = true;
+		for (int i = 0; i < threads.length; i++) {
+			try {
+				threads[i].join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
 		}
-		
-	
-		// The first node in the PV is the one we've chosen
-		bestNode = this.masterPV.get(0);
+	}
 
+	/**
+	 * Returns a line with the number of interior nodes of the last search and
+	 * the moves generated per node, plus the moves per node a full generation
+	 * would have produced if collectMoveStats is set.
+	 *
+	 * @return
+	 */
+	public String getSearchStats() {
+		String result = "Search: " + searchNodes + " nodes, "
+				+ String.format("%.2f", movesGenerated / (double) Math.max(1, searchNodes))
+				+ " moves generated per node";
+		if (collectMoveStats)
+			result += " (full generation: "
+					+ String.format("%.2f", movesAvailable / (double) Math.max(1, searchNodes))
+					+ ")";
+		return result;
 	}
 
 	/**
@@ -127,394 +362,303 @@ public class AI {
 		if (printThinkingProgress)
 			System.out.println("Nodes visited: " + nodesVisited);
 
-		int pvCounter = 1;
 		System.out.println("AI is expecting this variation:");
-		for (Node node : this.masterPV) {
-			System.out.println(pvCounter++ + ": "
-					+ node.getMove().coloredAlgebraicNotationPrint());
-		}
+		for (int i = 0; i < masterPVLength; i++)
+			System.out.println(i + 1 + ": " + PackedMove.toString(masterPV[i]));
 	}
 
 	/**
-	 * Empty the arraylist of arraylists of killer moves
+	 * Empty the killer move table
 	 */
 	private void initializeKillerMoveArrays() {
 
-		for (int i = 0; i <= Constants.getDepth(); i++)
-			killerMoves.get(i).removeAll(killerMoves.get(i));
-
+		for (int i = 0; i < Position.MAX_PLY; i++) {
+			killerMoves[i][0] = PackedMove.NO_MOVE;
+			killerMoves[i][1] = PackedMove.NO_MOVE;
+		}
 	}
 
 	/**
-	 * Updates the arrays that hold killer moves. This gets called whenever the
-	 * user changes the depth the AI is searching to.
+	 * Clears the killer move table. This gets called whenever the user changes
+	 * the depth the AI is searching to. The table is indexed by ply and sized
+	 * for the deepest possible search, so it never needs to grow.
 	 */
 	public void resizeKillerMoveArrays() {
-		killerMoves = new ArrayList<ArrayList<Move>>(Constants.getDepth() + 1);
-		for (int i = 0; i < Constants.getDepth() + 1; i++)
-			killerMoves.add(new ArrayList<Move>());
-
+		initializeKillerMoveArrays();
 	}
 
-	double pvSearch(double alpha, double beta, int depthleft,
-			boolean isWhiteTurn, Node parentNode) {
-		Node pv = null;
+	double pvSearch(double alpha, double beta, int depthleft, int ply) {
 		double score = 0.0;
-		long startTime = 0;
-		int i = 0;
-		boolean tmpHasMoved;
 		boolean bSearchPv = true;
-		boolean exploringPV = false;
+
+		// A stopped helper unwinds at once. What it returns is never used.
+		if (stopped)
+			return 0.0;
 
 		validateBoardInSync();
-		score = checkPVsearchTerminationConditions(parentNode, alpha, beta,
-				depthleft, isWhiteTurn);
-		// Termination condition
-		if (depthleft == 0) {
-			this.localPV = new ArrayList<Node>();
-			this.localPV.add(parentNode);
-			return quiesce(alpha, beta, isWhiteTurn, parentNode, depthleft);
-		}
-		if (controller.isDrawByThreefoldRepitition()) {
-			this.localPV = new ArrayList<Node>();
-			this.localPV.add(parentNode);
+		pvLength[ply] = ply;
+
+		// A repetition, the fifty move rule or material nobody can mate with
+		// is a draw whatever the tree below holds
+		if (ply > 0
+				&& (position.isRepetition() || recognizeDraws
+						&& (position.isFiftyMoveDraw() || position
+								.isInsufficientMaterial())))
 			return Constants.getDrawScore();
+
+		// Termination condition
+		if (depthleft == 0)
+			return quiesce(alpha, beta, ply);
+
+		// A stored result at least as deep as this search settles the node,
+		// except on the PV, which has to come back whole. Otherwise its best
+		// move is tried first.
+		long key = position.getKey();
+		int hashMove = PackedMove.NO_MOVE;
+		if (ply > 0 && transpositionTable.probe(key, tableProbe)) {
+			hashMove = tableProbe.getMove();
+			if (tableProbe.getDepth() >= depthleft
+					&& beta - alpha < 2 * nullWindow) {
+				double tableScore = fromTableScore(tableProbe.getScore(), ply);
+				int bound = tableProbe.getBound();
+				if (bound != TranspositionTable.UPPER_BOUND
+						&& tableScore >= beta)
+					return beta;
+				if (bound != TranspositionTable.LOWER_BOUND
+						&& tableScore <= alpha)
+					return alpha;
+				if (bound == TranspositionTable.EXACT)
+					return tableScore;
+			}
 		}
-		if (score != 0)
-			return score;
 
-		ArrayList<Node> localPV = new ArrayList<Node>();
+		// The PV move is only meaningful while every move above us was on the
+		// PV too
+		int pvMove = PackedMove.NO_MOVE;
+		if (followPV && ply < masterPVLength)
+			pvMove = masterPV[ply];
 
-		if (parentNode.getChildren().size() == 0)
-			populateChildren(parentNode, isWhiteTurn, depthleft);
+		MovePicker picker = movePickers[ply];
+		picker.init(position, pvMove != PackedMove.NO_MOVE ? pvMove
+				: hashMove, killerMoves[ply][0], killerMoves[ply][1]);
+		followPV = pvMove != PackedMove.NO_MOVE && picker.hasHashMove();
+		double originalAlpha = alpha;
+		int bestMoveHere = PackedMove.NO_MOVE;
 
-		// We should always start with PV if on first ply of search, if it
-		// isn't null
+		if (ply == 0)
+			numBranches = generator.generateLegalMoves(position, moveBuffers[0]);
 
-		// If the established PV is longer than the chain we're looking at,
-		// then there's at least one move we might consider
-		boolean isDeepEnough = masterPV.size() > this.depth + 1 - depthleft;
+		int numSearched = 0;
+		int move;
+		while ((move = picker.next()) != PackedMove.NO_MOVE) {
+			if (ply == 0 && !isRootMove(move))
+				continue;
 
-		if (isDeepEnough && validatePV(parentNode, depthleft)) {
-			prioritizeNode(parentNode,
-					this.masterPV.get(this.depth + 1 - depthleft));
-			exploringPV = true;
-		}
+			updateBranchCounter(ply, numSearched++);
 
-		for (int j = 0; j < parentNode.getChildren().size(); j++) {
-
-			updateBranchCounter(depthleft, j);
-			Node node = parentNode.getChildren().get(j);
-			Move move = node.getMove();
-
-			Piece capturedPiece = RuleEngine.processMove(move);
-			tmpHasMoved = move.getPiece().isHasMoved();
-			move.getPiece().setHasMoved(true);
-
-//			// Null move addition BEGIN
-//			 if ((!(exploringPV && j == 0))&&
-//			 (depthleft-1-Constants.getNullMoveReduction()>0) ){ // If we're
-//			 //looking at PV and on the first child move, we're continuing PV
-//			 if (!inCheck(isWhiteTurn)){
-//			 isNullMoveBranch = true;
-//			 // System.out.println(depthleft-1-Constants.getNullMoveReduction());
-//			
-//			 ArrayList <Node> realChildren = new ArrayList<Node>();
-//			 realChildren.addAll(parentNode.getChildren());
-//			
-//			 parentNode.getChildren().removeAll(parentNode.getChildren());
-//			 populateChildren(parentNode,
-//			 !isWhiteTurn,depthleft-1-Constants.getNullMoveReduction());
-//			
-//			 score = -pvSearch(-beta,-alpha,
-//			 depthleft-1-Constants.getNullMoveReduction(),
-//			 isWhiteTurn,parentNode);
-//			
-//			 parentNode.getChildren().removeAll(parentNode.getChildren());
-//			 parentNode.getChildren().addAll(realChildren);
-//			
-//			 isNullMoveBranch = false;
-//			
-//			 if(score >= beta){
-//			 RuleEngine.undoChanges(capturedPiece, move);
-//			 move.getPiece().setHasMoved(tmpHasMoved);
-//			 return score; // Cutoff
-//			 }
-//			 }
-//			
-//			 }
-			// Null move addition END
+			position.makeMove(move);
 
 			// PV backend
 			if (bSearchPv) {
-				score = -pvSearch(-beta, -alpha, depthleft - 1, !isWhiteTurn,
-						node);
+				score = -pvSearch(-beta, -alpha, depthleft - 1, ply + 1);
 			} else {
-				score = -pvSearch(-alpha - 0.00000001, -alpha, depthleft - 1,
-						!isWhiteTurn, node);
+				score = -pvSearch(-alpha - nullWindow, -alpha, depthleft - 1,
+						ply + 1);
 				if (score > alpha) {
-					score = -pvSearch(-beta, -alpha, depthleft - 1,
-							!isWhiteTurn, node); // re-search
+					score = -pvSearch(-beta, -alpha, depthleft - 1, ply + 1); // re-search
 				}
 			}
 
-			if(depthleft == Constants.getDepth())
-			log.info(node.getMove().coloredAlgebraicNotationPrint() + ": " + score);
-			
-			RuleEngine.undoChanges(capturedPiece, move);
-			move.getPiece().setHasMoved(tmpHasMoved);
+			if (ply == 0 && depthleft == Constants.getDepth() && !isHelper)
+				log.info(PackedMove.toString(move) + ": " + score);
+
+			position.unmakeMove(move);
+
+			// The PV move comes first, so every later sibling is off the PV
+			followPV = false;
+
+			// Scores below a stopped search are meaningless, keep them out
+			// of the table
+			if (stopped)
+				return 0.0;
 
 			// Fail hard beta-cutoff
 			if (score >= beta) {
 
-				// If the current move isn't already a killer move, make it one
-				boolean nodeFound = false;
-				for (Move killerNode : killerMoves.get(depthleft))
-					if (killerNode.equals(node.getMove()))
-						nodeFound = true;
-				if (!nodeFound) {
-					killerMoves.get(depthleft).add(node.getMove());
-
-				}
+				// Quiet moves that cause a cutoff become killer moves
+				if (!PackedMove.isCapture(move))
+					storeKillerMove(ply, move);
+				recordMoveStats(picker);
+				if (ply > 0 || rootMoves == null)
+					transpositionTable.store(key, move, depthleft,
+							TranspositionTable.LOWER_BOUND, toTableScore(beta, ply));
 				return beta;
 			}
 
 			// Tighten the alpha bound
 			if (score > alpha) {
 				alpha = score;
-				pv = node;
-				localPV = this.localPV;
+				bestMoveHere = move;
+				updatePV(ply, move);
 
 				// If we are in the first recursive call, save the best move
 				// so we can use it later
-				if (depthleft == Constants.getDepth()) {
-					bestNode = node;
-				}
+				if (ply == 0)
+					bestMove = move;
 			}
 
 			bSearchPv = false;
 		}
-
-		ArrayList<Node> tmp = new ArrayList<Node>();
-		if (depthleft != Constants.getDepth())
-			tmp.add(parentNode);
-		tmp.addAll(localPV);
-		this.localPV = tmp;
+		recordMoveStats(picker);
+
+		// No legal moves means checkmate or stalemate
+		if (numSearched == 0)
+			return statusScore(position.gameStatus(0), ply);
+
+		// A root restricted to some of its moves has no result for the
+		// position as a whole
+		if (ply > 0 || rootMoves == null)
+			transpositionTable.store(key, bestMoveHere, depthleft,
+					alpha > originalAlpha ? TranspositionTable.EXACT
+							: TranspositionTable.UPPER_BOUND, toTableScore(
+							alpha, ply));
 		return alpha;
 	}
 
-	private void updateBranchCounter(int depth, int branchNbr) {
-		if (depth == Constants.getDepth())
-			branchCounter = branchNbr;
-		
+	/**
+	 * Converts a mate score found <code>ply</code> plies from the root into
+	 * one counted from the current node, for the transposition table.
+	 */
+	private static double toTableScore(double score, int ply) {
+		if (score > mateThreshold)
+			return score + ply;
+		if (score < -mateThreshold)
+			return score - ply;
+		return score;
 	}
 
-	private double checkPVsearchTerminationConditions(Node parentNode,
-			double alpha, double beta, int depthleft, boolean isWhiteTurn) {
-		double score = 0.0;
-		// If Check mate/draw/king got captured
-		if (controller.isWhiteCheckmated()) {
-			this.localPV = new ArrayList<Node>();
-			this.localPV.add(parentNode);
-			score = -Constants.getCheckMateScore(); // This one should be
-													// negative
-		} else if (controller.isBlackCheckmated()) {
-			this.localPV = new ArrayList<Node>();
-			this.localPV.add(parentNode);
-			score = Constants.getCheckMateScore();
-		} else if (controller.isDrawByThreefoldRepitition()) {
-			this.localPV = new ArrayList<Node>();
-			this.localPV.add(parentNode);
-			return Constants.getDrawScore();
-		}
-
+	/**
+	 * Converts a score from the transposition table back into one counted
+	 * from the root, <code>ply</code> plies above.
+	 */
+	private static double fromTableScore(double score, int ply) {
+		if (score > mateThreshold)
+			return score - ply;
+		if (score < -mateThreshold)
+			return score + ply;
 		return score;
 	}
 
+	public TranspositionTable getTranspositionTable() {
+		return transpositionTable;
+	}
+
 	/**
-	 * Checks if board and pieces agree on piece location
-	 * 
-	 * @return false if any piece thinks it is on a different square than it is
+	 * Makes this AI search with <code>table</code>, which other searches may
+	 * be using at the same time.
+	 *
+	 * @param table
 	 */
-	private boolean validateBoardInSync() {
-
-		// Validate board and pieces agree on all piece locations for debugging
-		for (int r = 0; r < 8; r++) {
-			for (int c = 0; c < 8; c++)
-				if (controller.getBoardController().getPieceByCoords(r, c) != null)
-					if (controller.getBoardController().getPieceByCoords(r, c)
-							.getRow() != r
-							|| controller.getBoardController()
-									.getPieceByCoords(r, c).getCol() != c) {
-						log.error("AI.pvSearch: ERROR: Board out of sync, make/unmake process unstable");
-						return false;
-					}
-		}
-		return true;
+	public void setTranspositionTable(TranspositionTable table) {
+		this.transpositionTable = table;
 	}
 
 	/**
-	 * Returns true if the king of color <code>isWhite</code> is in check.
-	 * 
-	 * @param isWhite
+	 * Returns the score of a finished game for the side to move:
+	 * checkmate, sooner worse, or a draw.
+	 *
+	 * @param status
+	 * @param ply
 	 * @return
 	 */
-	private boolean inCheck(boolean isWhite) {
-		boolean result = false;
-		Piece king = findKing(isWhite);
-		if (RuleEngine.isAttackedSquare(king.getRow(), king.getCol(),
-				king.isWhite()))
-			result = true;
+	private double statusScore(GameStatus status, int ply) {
+		if (status == GameStatus.CHECKMATE)
+			return -Constants.getCheckMateScore() + ply;
+		return Constants.getDrawScore();
+	}
 
-		return result;
+	/**
+	 * Adds the moves <code>picker</code> generated at the node it has just
+	 * finished to the search stats.
+	 *
+	 * @param picker
+	 */
+	private void recordMoveStats(MovePicker picker) {
+		searchNodes++;
+		movesGenerated += picker.getNumGenerated();
+		if (collectMoveStats)
+			movesAvailable += generator.generateLegalMoves(position,
+					opponentMoves);
 	}
 
 	/**
-	 * Returns the number of legal moves at depth <code>depth</code>
-	 * 
-	 * @param depth
-	 * @return
+	 * Records <code>move</code> as the best move at <code>ply</code>, followed
+	 * by the variation found below it.
+	 *
+	 * @param ply
+	 * @param move
 	 */
-	public int perft(int depth, boolean isWhite) {
+	private void updatePV(int ply, int move) {
+		pvTable[ply][ply] = move;
+		for (int i = ply + 1; i < pvLength[ply + 1]; i++)
+			pvTable[ply][i] = pvTable[ply + 1][i];
+		pvLength[ply] = Math.max(pvLength[ply + 1], ply + 1);
+	}
 
-		ArrayList<Move> legalMoves = controller.getMoveGenerator().findMoves(
-				isWhite);
+	/**
+	 * Makes <code>move</code> the newest killer move of <code>ply</code>,
+	 * pushing out the oldest one.
+	 *
+	 * @param ply
+	 * @param move
+	 */
+	private void storeKillerMove(int ply, int move) {
+		if (killerMoves[ply][0] != move) {
+			killerMoves[ply][1] = killerMoves[ply][0];
+			killerMoves[ply][0] = move;
+		}
+	}
 
-		int numMoves = 0;
-		if (depth == 0)
-			return legalMoves.size();
-		else {
-			for (Move move : legalMoves) {
-				boolean tmpHasMoved = move.getPiece().isHasMoved();
-				move.getPiece().setHasMoved(true);
-				Piece capturedPiece = RuleEngine.processMove(move);
+	private void updateBranchCounter(int ply, int branchNbr) {
+		if (ply == 0)
+			branchCounter = branchNbr;
 
-				numMoves += perft(depth - 1, !isWhite);
+	}
 
-				RuleEngine.undoChanges(capturedPiece, move);
-				move.getPiece().setHasMoved(tmpHasMoved);
-			}
+	/**
+	 * In debug mode, checks that the incremental position hash is still
+	 * correct
+	 *
+	 * @return false if the hash no longer matches the pieces on the board
+	 */
+	private boolean validateBoardInSync() {
 
+		// Recomputing the hash from scratch is too slow to do on every node
+		// unless we are debugging
+		if (Constants.getDebugFlag() && !position.verifyKey()) {
+			log.error("AI.pvSearch: ERROR: Position hash out of sync, make/unmake process unstable");
+			return false;
 		}
-
-		return numMoves;
+		return true;
 	}
 
 	/**
-	 * Alpha Beta Search. This was replaced by pvSearch. Searches in a very
-	 * similar way but pvSearch has optimizations that help performance
-	 * significantly.
-	 * 
-	 * @param alpha
-	 * @param beta
-	 * @param depthleft
-	 * @param isWhite
-	 * @param parentNode
+	 * Returns the number of legal moves at depth <code>depth</code>, so depth
+	 * 0 is the number of moves in the current position. Counting is done by
+	 * Perft, which can also be run headless, with transposed subtrees looked
+	 * up in a PerftTable.
+	 *
+	 * @param depth
 	 * @return
 	 */
-	@Deprecated
-	double alphaBeta(double alpha, double beta, int depthleft, boolean isWhite,
-			Node parentNode) {
-		Node pv = null;
-		double score = 0.0;
-		long startTime = 0;
-		int i = 0;
-		boolean tmpHasMoved;
-
-		// Termination condition
-		if (depthleft == 0) {
-			this.localPV = new ArrayList<Node>();
-			this.localPV.add(parentNode);
-			return quiesce(alpha, beta, isWhite, parentNode, depthleft);
-		}
-
-		ArrayList<Node> localPV = new ArrayList<Node>();
-
-		// Branch timing housekeeping
-		if (depthleft == Constants.getDepth()) {
-			startTime = System.currentTimeMillis();
-			initTime = startTime;
-		}
-
-		if (parentNode.getChildren().size() == 0)
-			populateChildren(parentNode, isWhite, depthleft);
-
-		// We should always start with PV if on first ply of search, if it
-		// isn't null
-
-		// If the established PV is longer than the chain we're looking at,
-		// then there's at least one move we might consider
-		boolean isDeepEnough = masterPV.size() > this.depth - depthleft + 1;
-
-		if (isDeepEnough && validatePV(parentNode, depthleft))
-			prioritizeNode(parentNode,
-					this.masterPV.get(this.depth - depthleft + 1));
-
-		for (int j = 0; j < parentNode.getChildren().size(); j++) {
-
-			// Branch timing housekeeping
-			if (depthleft == Constants.getDepth()) {
-				printTimeStats(++i, parentNode, startTime);
-				startTime = System.currentTimeMillis();
-			}
-
-			Node node = parentNode.getChildren().get(j);
-			Move move = node.getMove();
-
-			Piece capturedPiece = RuleEngine.processMove(move);
-			tmpHasMoved = move.getPiece().isHasMoved();
-			move.getPiece().setHasMoved(true);
-
-			score = -alphaBeta(-beta, -alpha, depthleft - 1, !isWhite, node);
-
-			// node.setUserObject(++i + ", " + move.algebraicNotationPrint()
-			// + ": " + score);
-
-			RuleEngine.undoChanges(capturedPiece, move);
-			move.getPiece().setHasMoved(tmpHasMoved);
-
-			// Fail hard beta-cutoff
-			if (score >= beta) {
-
-				// If the current move isn't already a killer move, make it one
-				boolean nodeFound = false;
-				for (Move killerNode : killerMoves.get(depthleft))
-					if (killerNode.equals(node.getMove()))
-						nodeFound = true;
-				if (!nodeFound)
-					killerMoves.get(depthleft).add(node.getMove());
-
-				return beta;
-			}
-
-			// Tighten the alpha bound
-			if (score > alpha) {
-				alpha = score;
-				pv = node;
-				localPV = this.localPV;
-
-				// If we are in the first recursive call, save the best move
-				// so we can use it later
-				if (depthleft == Constants.getDepth()) {
-					bestNode = node;
-					System.out.println("AI.AB Choosing "
-							+ node.getMove().algebraicNotationPrint());
-				}
-			}
-		}
+	public int perft(int depth, boolean isWhite) {
+		position = new Position(controller.getModel().getPosition());
+		position.setSideToMove(isWhite ? Position.WHITE : Position.BLACK);
 
-//		if (parentNode.getChildren().size() == 0) {
-//			// If I have no moves assume I was checkmated and return low alpha
-//			// value
-//			alpha = -Constants.getCheckMateScore();
-//		}
-
-		ArrayList<Node> tmp = new ArrayList<Node>();
-		if (depthleft != Constants.getDepth())
-			tmp.add(parentNode);
-		tmp.addAll(localPV);
-		this.localPV = tmp;
-		return alpha;
+		PerftTable table = new PerftTable(perftTableMegabytes);
+		int result = (int) new Perft(table).perft(position, depth + 1);
+		log.info(table.getStats());
+		return result;
 	}
 
 	/**
@@ -522,239 +666,196 @@ public class AI {
 	 * or one in which no captures can be made. This helps avoid the horizon
 	 * effect, and is called at the end of pvSearch. It returns the score of the
 	 * position found by the eval function.
-	 * 
+	 *
 	 * @param alpha
 	 * @param beta
-	 * @param isWhite
-	 * @param parentNode
-	 * @param depthleft
+	 * @param ply
 	 * @return
 	 */
-	public double quiesce(double alpha, double beta, boolean isWhiteTurn,
-			Node parentNode, int depthleft) {
+	public double quiesce(double alpha, double beta, int ply) {
+		// A stopped helper doesn't finish its capture tree either
+		if (stopped)
+			return 0.0;
+
 		nodesPerLevel[this.depth]++;
 		boolean printFlag = false;
+		pvLength[ply] = ply;
+
+		// Only captures and promotions are generated, or all evasions when in
+		// check, so quiet moves are never put in a move list here
+		int side = position.getSideToMove();
+		boolean inCheck = position.isInCheck(side);
+		int[] moves = moveBuffers[ply];
+		int numMoves = generator.generateQuiescenceMoves(position, moves);
 
-		double stand_pat = evaluate(isWhiteTurn, parentNode, printFlag);
+		// In check the evasions are all the legal moves there are. Otherwise
+		// the mobility count the evaluation needs anyway tells if there are
+		// any moves at all.
+		int sideMobility = inCheck ? numMoves : mobility(side);
+
+		// No moves means checkmate or stalemate
+		if (sideMobility == 0)
+			return statusScore(position.gameStatus(0), ply);
+
+		double stand_pat = evaluate(sideMobility, printFlag);
 		double score;
-		boolean tmpHasMoved = true;
 		if (stand_pat >= beta)
 			return beta;
 		if (alpha < stand_pat)
 			alpha = stand_pat;
-		if (parentNode.getChildren().size() == 0)
-			populateChildren(parentNode, isWhiteTurn, depthleft);
-
-		for (Node node : parentNode.getChildren()) {
-			Move move = node.getMove();
-			int col = move.getEndCol();
-			int row = move.getEndRow();
-			Piece otherPiece = controller.boardController.getPieceByCoords(row,
-					col);
-			
-			Piece king = findKing(isWhiteTurn);
-			
-			if (otherPiece != null || RuleEngine.isAttackedSquare(king.getRow(), king.getCol(), !king.isWhite())) {
-
-				Piece capturedPiece = RuleEngine.processMove(move);
-				tmpHasMoved = move.getPiece().isHasMoved();
-				move.getPiece().setHasMoved(true);
-
-				score = -quiesce(-beta, -alpha, !isWhiteTurn, node,
-						depthleft - 1);
-
-				RuleEngine.undoChanges(capturedPiece, move);
-				move.getPiece().setHasMoved(tmpHasMoved);
-
-				if (score >= beta)
-					return beta;
-				if (score > alpha)
-					alpha = score;
-			}
-		}
-		return alpha;
-	}
-
-	/**
-	 * Verifies that we have explored a Princpal variation branch up to the node
-	 * parentNode. This allows us to continue checking the PV. If we are no
-	 * longer on the PV branch, then we shouldn't assume that the PV node at the
-	 * current depth is a good move.
-	 * 
-	 * @param parentNode
-	 * @param depthleft
-	 * @return
-	 */
-	private boolean validatePV(Node parentNode, int depthleft) {
+		if (ply >= Position.MAX_PLY - 1)
+			return alpha;
 
-		int i = this.depth - depthleft; // how deep we are
-		boolean result = true;
+		orderMoves(ply, numMoves);
 
-		while (i >= 0 && result == true) {
-			if (parentNode == masterPV.get(i)) {
+		for (int j = 0; j < numMoves; j++) {
+			int move = pickNextMove(ply, j, numMoves);
 
-				parentNode = parentNode.getParent();
-				i--;
-			} else
-				result = false;
+			position.makeMove(move);
+			score = -quiesce(-beta, -alpha, ply + 1);
+			position.unmakeMove(move);
 
+			if (score >= beta)
+				return beta;
+			if (score > alpha)
+				alpha = score;
 		}
-
-		return result;
+		return alpha;
 	}
 
 	/**
-	 * Takes the Node child and puts it in the front of the arraylist of
-	 * children of the parent Node. This makes that child the first one analyzed
-	 * when looping through the parents' children.
-	 * 
-	 * @param parent
-	 * @param child
+	 * Gives each move in the move buffer of <code>ply</code> an ordering key so
+	 * they are searched in this order:
+	 *
+	 * <li>1. The move from the previous iteration's PV <li>2. MVV-LVA (pxn
+	 * before nxp) <li>3. Killer Heuristic <li>4. Everything else
+	 *
+	 * @param ply
+	 * @param numMoves
 	 */
-	public void prioritizeNode(Node parent, Node child) {
-		boolean successfulRemove = parent.getChildren().remove(child);
-		if (successfulRemove)
-			parent.getChildren().add(0, child);
-		else
-			System.out
-					.println("AI.PrioritizeNode: ERROR, non-child node was attempted to prioritize");
-		// child.setScore((-500));
+	private void orderMoves(int ply, int numMoves) {
+		int[] moves = moveBuffers[ply];
+		int[] scores = scoreBuffers[ply];
+
+		// The PV move is only meaningful while every move above us was on the
+		// PV too
+		int pvMove = PackedMove.NO_MOVE;
+		if (followPV && ply < masterPVLength)
+			pvMove = masterPV[ply];
+		followPV = false;
+
+		for (int i = 0; i < numMoves; i++) {
+			int move = moves[i];
+
+			if (move == pvMove) {
+				scores[i] = pvMoveOrderKey;
+				followPV = true;
+			}
+
+			// If it is a capture, get the material difference and save it
+			// so we can sort (achieves MVV-LVA)
+			else if (PackedMove.isCapture(move))
+				scores[i] = 10 * (pieceWeights[Position.typeOf(PackedMove
+						.getPiece(move))] - pieceWeights[Position
+						.typeOf(PackedMove.getCaptured(move))]);
+
+			// Killer moves go right before the noncaptures
+			else if (move == killerMoves[ply][0]
+					|| move == killerMoves[ply][1])
+				scores[i] = killerMoveOrderKey;
+			else
+				scores[i] = quietMoveOrderKey;
+		}
 	}
 
 	/**
-	 * Build the subtree of legal moves for the Node parent node passed as a
-	 * parameter. This also populates the DefaultMutableTree object tree, so the
-	 * GUI reflects the real game tree
-	 * 
-	 * @param parentNode
-	 * @param isWhite
-	 * @param depthleft
+	 * Finds the move with the lowest ordering key from <code>index</code> on,
+	 * swaps it into <code>index</code> and returns it. Sorting one move at a
+	 * time means nothing is sorted past a beta cutoff.
+	 *
+	 * @param ply
+	 * @param index
+	 * @param numMoves
+	 * @return
 	 */
-	public void populateChildren(Node parentNode, boolean isWhiteTurn,
-			int depthleft) {
-
-		ArrayList<Move> legalMoves = controller.getMoveGenerator().findMoves(
-				isWhiteTurn);
-		for (Move move : legalMoves) {
-
-			Node node = new Node(move);
-			// node.setUserObject(move.algebraicNotationPrint());
-
-			// parentNode.add(node);
-			parentNode.getChildren().add(node);
-			node.setParent(parentNode);
-		}
-
-		orderMoves(parentNode.getChildren(), depthleft);
+	private int pickNextMove(int ply, int index, int numMoves) {
+		int[] moves = moveBuffers[ply];
+		int[] scores = scoreBuffers[ply];
+		int best = index;
+		for (int i = index + 1; i < numMoves; i++)
+			if (scores[i] < scores[best])
+				best = i;
+
+		int move = moves[best];
+		moves[best] = moves[index];
+		moves[index] = move;
+		int score = scores[best];
+		scores[best] = scores[index];
+		scores[index] = score;
+		return move;
 	}
 
 	/**
-	 * Takes a list of legal moves and attempts to sort them with the following
-	 * weight:
-	 * 
-	 * <li>1. MVV-LVA (pxn before nxp) <li>2. Killer Heuristic
-	 * 
-	 * pvSearch prioritizes PV nodes as it finds them, and that always happens
-	 * after this method is called, so PV nodes end up in the front of the
-	 * arraylist.
-	 * 
-	 * @param nodes
-	 * @param depthleft
+	 * Evaluates <code>positionIn</code> from the point of view of the side to
+	 * move. The position becomes this AI's working position, so it must not be
+	 * one another search is playing moves on.
+	 *
+	 * @param positionIn
+	 * @param printFlag
+	 * @return
 	 */
-	@SuppressWarnings("unchecked")
-	public void orderMoves(ArrayList<Node> nodes, int depthleft) {
-
-		for (int i = 0; i < nodes.size(); i++) {
-
-			Node node = nodes.get(i);
-			Piece otherPiece = controller.boardController.getPieceByCoords(node
-					.getMove().getEndRow(), node.getMove().getEndCol());
+	public double evaluate(Position positionIn, boolean printFlag) {
+		this.position = positionIn;
+		int numMoves = generator.countLegalMoves(position,
+				position.getSideToMove());
 
-			// If it is a capture, get the material difference and save it
-			// so we can sort (achieves MVV-LVA)
-			if (otherPiece != null) {
-				int materialDifference = Constants.getPieceWeight(node
-						.getMove().getPiece())
-						- Constants.getPieceWeight(otherPiece);
-				node.setScore(materialDifference);
-
-			}
-
-			// If it's not a capture, check to see if it is in the killer moves
-			// array. If so, set the score to -0.1 so it is before the
-			// noncaptures
-			else {
-				boolean nodeFound = false;
-				for (Move killerNode : killerMoves.get(depthleft))
-					if (killerNode.equals(node.getMove()))
-						nodeFound = true;
-				if (nodeFound) {
-					node.setScore(Constants.getKillerMoveScore());
-				}
-			}
-		}
-		Collections.sort(nodes, this.nodeComparator);
+		// Checkmate, stalemate or a draw is scored as such
+		GameStatus status = position.gameStatus(numMoves);
+		if (status != GameStatus.ONGOING)
+			return statusScore(status, 0);
 
+		return evaluate(numMoves, printFlag);
 	}
 
 	/**
-	 * Calls all evaluation methods on a potential move and returns the score of
-	 * the move.
-	 * 
+	 * Calls all evaluation methods on the working position and returns its
+	 * score. <code>numMoves</code> is the number of legal moves of the side to
+	 * move, which the caller has already generated.
+	 *
 	 * @return
 	 */
-	public double evaluate(boolean isWhitesTurn, Node node, boolean printFlag) {
+	public double evaluate(int numMoves, boolean printFlag) {
 		if (this.depth == Constants.getDepth())
 			nodesVisited++;
 		double result = 0.0;
 
-		// If the current position is a checkmate, we can give it the end-game
-		// score without evaluating all the other factors.
-		if (controller.isWhiteCheckmated() || controller.isBlackCheckmated())
-			result = Constants.getCheckMateScore();
-		else if (controller.isDrawByThreefoldRepitition())
-			result = Constants.getDrawScore();
-		else {
-			int positionalScore = computePositionalScore(isWhitesTurn, node);
-			int materialScore = computeMaterialScore();
-			int bonusScore = computeBonusScore();
-
-			double weightedPositionalScore = positionalScore
-					* Constants.getPositionalScoreWeight();
-			double weightedMaterialScore = materialScore
-					* Constants.getMaterialScoreWeight();
-			double weightedBonusScore = bonusScore
-					* Constants.getBonusScoreWeight();
-
-			/*
-			 * log.info("AI.evaluate: weightdP: " + weightedPositionalScore +
-			 * " weighgtedM: " + weightedMaterialScore + " weightedB: " +
-			 * weightedBonusScore);
-			 */
-
-			result = weightedPositionalScore + weightedMaterialScore
-					+ weightedBonusScore;
-
-			if (printFlag) {
-				System.out.println("Evaluation of current position: " + result);
-				System.out.println("-Material score:" + weightedMaterialScore);
-				System.out.println("-Positional score:"
-						+ weightedPositionalScore);
-				System.out.println("-Bonus score:" + weightedBonusScore);
-			}
-
+		int positionalScore = computePositionalScore(numMoves);
+		int materialScore = computeMaterialScore();
+		int bonusScore = computeBonusScore();
+
+		double weightedPositionalScore = positionalScore
+				* Constants.getPositionalScoreWeight();
+		double weightedMaterialScore = materialScore
+				* Constants.getMaterialScoreWeight();
+		double weightedBonusScore = bonusScore
+				* Constants.getBonusScoreWeight();
+
+		result = weightedPositionalScore + weightedMaterialScore
+				+ weightedBonusScore;
+
+		if (printFlag) {
+			System.out.println("Evaluation of current position: " + result);
+			System.out.println("-Material score:" + weightedMaterialScore);
+			System.out.println("-Positional score:" + weightedPositionalScore);
+			System.out.println("-Bonus score:" + weightedBonusScore);
 		}
 
 		// Positive scores mean white is winning, so we negate the calculated
 		// score here
 		// if it is black's turn
-		if (!isWhitesTurn)
+		if (position.getSideToMove() == Position.BLACK)
 			result = result * -1.0;
 
-		// If no legal moves, it's a stalemate
-		if (node.getChildren().size() == 0)
-			result = Constants.getDrawScore();
-
 		return result;
 	}
 
@@ -762,42 +863,28 @@ public class AI {
 	 * Computes the integer value of the position, taking into account piece
 	 * mobility, king safety, mobility of the enemy, passed pawns, doubled
 	 * pawns, pawn structure, etc.
-	 * 
+	 *
 	 * Very computationally expensive, will need to optimize this in the future.
+	 *
+	 * @param numMoves
+	 *            number of legal moves of the side to move
 	 */
-	public int computePositionalScore(boolean isWhite, Node node) {
+	public int computePositionalScore(int numMoves) {
 
-		/*
-		 * Note: isWhite is the OPPOSITE color of the piece in node. We have a
-		 * reference to that so we can add legal children nodes to node if they
-		 * don't exist already
-		 */
 		// TODO: Extra points for center control
 
 		int whiteMoves = 0;
 		int blackMoves = 0;
 
-		// This method is only called when evaluate is called, which is only
-		// when depth = 0
-		int depth = 0;
-
-		if (isWhite) {
-			if (node.getChildren().size() == 0)
-				populateChildren(node, isWhite, depth);
-
-			whiteMoves = node.getChildren().size();
-
-			blackMoves = controller.getMoveGenerator().findMoves(false).size();
-		}
-
-		else {
-
-			if (node.getChildren().size() == 0)
-				populateChildren(node, isWhite, depth);
-			blackMoves = node.getChildren().size();
-
-			whiteMoves = controller.getMoveGenerator().findMoves(true).size();
+		int opponent = position.getSideToMove() ^ 1;
+		int opponentNumMoves = mobility(opponent);
 
+		if (opponent == Position.BLACK) {
+			whiteMoves = numMoves;
+			blackMoves = opponentNumMoves;
+		} else {
+			whiteMoves = opponentNumMoves;
+			blackMoves = numMoves;
 		}
 
 		int difference = whiteMoves - blackMoves;
@@ -805,57 +892,37 @@ public class AI {
 		return difference;
 	}
 
+	/**
+	 * Returns the mobility of color <code>color</code> in the working
+	 * position, counted without writing out any moves. Depending on
+	 * Constants.getMobilityMode this is the exact number of legal moves or
+	 * the cheaper pseudo legal count of destination squares.
+	 *
+	 * @param color
+	 * @return
+	 */
+	private int mobility(int color) {
+		if (Constants.getMobilityMode() == MobilityMode.PSEUDO_LEGAL)
+			return generator.countPseudoLegalMoves(position, color);
+		return generator.countLegalMoves(position, color);
+	}
+
 	/**
 	 * Computes the material score of a move. This is the difference between the
 	 * amount of material (in points) for black and white. Positive means white
-	 * is ahead in material.
-	 * 
+	 * is ahead in material. The position keeps the balance up to date as
+	 * pieces come and go, so this is a single read.
+	 *
 	 * @return
 	 */
 	public int computeMaterialScore() {
-		int result = 0;
-		int whiteScore = 0;
-		int blackScore = 0;
-
-		PieceArray whitePieces = controller.getModel().getWhitePieces();
-		PieceArray blackPieces = controller.getModel().getBlackPieces();
-
-		for (int i = 0; i < PieceArray.numPieces; i++) {
-			Piece piece = whitePieces.getPiece(i);
-			if (piece != null) {
-				whiteScore += Constants.getPieceWeight(piece);
-
-				// If it's a pawn that will be promoting, let it have the extra
-				// value it would have if it promotes to a queen (-1 because it
-				// already has 1 for being pawn)
-				if (piece.getType() == Constants.getPawnChar()
-						&& piece.getRow() == 7) {
-					whiteScore += Constants.getQueenweight() - 1;
-				}
-			}
-		}
-		for (int i = 0; i < PieceArray.numPieces; i++) {
-			Piece piece = blackPieces.getPiece(i);
-			if (piece != null) {
-				blackScore += Constants.getPieceWeight(piece);
-
-				if (piece.getType() == Constants.getPawnChar()
-						&& piece.getRow() == 0) {
-					blackScore += Constants.getQueenweight() - 1;
-				}
-			}
-		}
-		// TODO account for passant
-
-		result = whiteScore - blackScore;
-
-		return result;
+		return position.getMaterialBalance();
 	}
 
 	/**
 	 * Calls the bonus calculation methods for each side and returns the
 	 * difference.
-	 * 
+	 *
 	 * @return
 	 */
 	public int computeBonusScore() {
@@ -863,11 +930,8 @@ public class AI {
 		// TODO: Break up the bonuses instead of lumping them all together
 		// so it is easier to apply different weights.
 
-		boolean black = false;
-		boolean white = true;
-
-		int result = computeOneSidedBonusScore(white)
-				- computeOneSidedBonusScore(black);
+		int result = computeOneSidedBonusScore(Position.WHITE)
+				- computeOneSidedBonusScore(Position.BLACK);
 
 		return result;
 	}
@@ -876,13 +940,12 @@ public class AI {
 	 * Computes the integer value of "bonuses". These can be for castling,
 	 * moving the king and queen pawns early, having both bishops, having
 	 * connected rooks, etc.
-	 * 
-	 * @param isWhite
+	 *
+	 * @param color
 	 * @return
 	 */
-	public int computeOneSidedBonusScore(boolean isWhite) {
+	public int computeOneSidedBonusScore(int color) {
 		int result = 0;
-		Piece king = findKing(isWhite);
 
 		// TODO: Bonus for not moving the same piece twice in the opening
 		// TODO: Bonus for not having a knight on the edge of the board
@@ -890,12 +953,12 @@ public class AI {
 		// TODO: Penalty for doubled pawns
 		// TODO: Penalty for isolated pawns
 
-		int castlingBonus = computeCastlingBonus(king);
-		int multiMoveOpeningPiecePenalty = computeMultiMoveOpeningPiecePenalty(isWhite);
-		int centralPawnsPushedBonus = computeCentralPawnsPushedBonus(isWhite);
-		int bishopPairBonus = computeBishopPairBonus(isWhite);
-		int connectedRooksBonus = computeConnectedRooksBonus(isWhite);
-		int earlyQueenPenalty = computeEarlyQueenPenalty(isWhite);
+		int castlingBonus = computeCastlingBonus(color);
+		int multiMoveOpeningPiecePenalty = computeMultiMoveOpeningPiecePenalty(color);
+		int centralPawnsPushedBonus = computeCentralPawnsPushedBonus(color);
+		int bishopPairBonus = computeBishopPairBonus(color);
+		int connectedRooksBonus = computeConnectedRooksBonus(color);
+		int earlyQueenPenalty = computeEarlyQueenPenalty(color);
 		result = castlingBonus + centralPawnsPushedBonus + bishopPairBonus
 				+ connectedRooksBonus + earlyQueenPenalty
 				+ multiMoveOpeningPiecePenalty;
@@ -904,37 +967,28 @@ public class AI {
 
 	/**
 	 * Returns the penalty weight of moving a queen from her home square early
-	 * if she is not on her homesquare and we're less than 3 moves in.
-	 * 
-	 * @param isWhite
+	 * if she is not on her homesquare and we're less than 8 moves in.
+	 *
+	 * @param color
 	 * @return
 	 */
-	private int computeEarlyQueenPenalty(boolean isWhite) {
+	private int computeEarlyQueenPenalty(int color) {
 
 		// TODO: The AI still loves to move the queen out early...not sure this
 		// is working 100% right
 
 		int result = 0;
-		if (controller.getModel().getMoveList().size() < 16) {
-			PieceArray pieces = findPieceList(isWhite);
-			Piece queen = pieces.getQueen();
-			if (queen != null) {
-				int row = queen.getRow();
-				int col = queen.getCol();
-
-				int homeRow;
-				if (isWhite)
-					homeRow = Constants.getWhitePieceRow();
-				else
-					homeRow = Constants.getBlackPieceRow();
-
-				if (!(col == Constants.getQueenCol() && row == homeRow))
-					result = -Constants.getEarlyQueenPenaltyWeight();
-				// if (result <0)
-				// System.out.println("Queen penalty, " + queen.toString());
-			}
-		} else
-			result = 0;
+		long queens = position.getPieceBoard(Position.QUEEN, color);
+		if (position.getPlyCount() < 16 && queens != 0) {
+			int homeRow;
+			if (color == Position.WHITE)
+				homeRow = Constants.getWhitePieceRow();
+			else
+				homeRow = Constants.getBlackPieceRow();
+
+			if (!isOn(queens, homeRow, Constants.getQueenCol()))
+				result = -Constants.getEarlyQueenPenaltyWeight();
+		}
 
 		return result;
 	}
@@ -942,11 +996,11 @@ public class AI {
 	/**
 	 * This checks to see if any pawns are on the same column, and returns the
 	 * penalty cost if so.
-	 * 
-	 * @param isWhite
+	 *
+	 * @param color
 	 * @return
 	 */
-	private int computeDoubledPawnsPenalty(boolean isWhite) {
+	private int computeDoubledPawnsPenalty(int color) {
 
 		// TODO: Implement this
 		return 0;
@@ -957,148 +1011,96 @@ public class AI {
 	 * this method will count how many times a piece has moved more than once,
 	 * and multiply that times the penalty. After 15 moves the opening is
 	 * considered over and this method will return 0.
-	 * 
-	 * Making tons of ArrayLists is too slow, the current implementation will
-	 * need to be redone. One option would be to add a boolean to the piece
-	 * class (or an int) to reflect if it has moved more than once, or how many
-	 * times it has moved.
-	 * 
-	 * @param isWhite
+	 *
+	 * Walking the move list is too slow, and the search does not keep one. One
+	 * option would be to keep a count of how many times each piece has moved
+	 * in the position.
+	 *
+	 * @param color
 	 * @return
 	 */
-	private int computeMultiMoveOpeningPiecePenalty(boolean isWhite) {
+	private int computeMultiMoveOpeningPiecePenalty(int color) {
 		int result = 0;
 
 		// TODO: Find a faster implementation
-		// ArrayList<Move>moveList = controller.getModel().getMoveList();
-
-		// If we're not in the opening anymore, this isn't relevant anymore
-		// if (moveList.size() > 30)
-		// result = 0;
-		// else{
-		// int start = 0;
-		// if(isWhite)
-		// start = 0;
-		// else
-		// start = 1;
-		// ArrayList<Piece>movedPieces = new ArrayList<Piece>();
-		// for (int i = 0; (2*i+start) < moveList.size(); i++){
-		// int index = 2*i + start;
-		//
-		// Piece piece = moveList.get(index).getPiece();
-		// if (!movedPieces.contains(piece))
-		// movedPieces.add(piece);
-		// else
-		// result++;
-		// }
-		// }
-		//
 		return -result * Constants.getMultiMoveOpeningPiecePenalty();
 	}
 
 	/**
 	 * Checks to see if both rooks are alive and if they are connected,
 	 * returning the relevant bonus if so.
-	 * 
-	 * @param isWhite
+	 *
+	 * @param color
 	 * @return
 	 */
-	private int computeConnectedRooksBonus(boolean isWhite) {
-		// TODO Implement this.
+	private int computeConnectedRooksBonus(int color) {
 		int result = 0;
-		Piece A_rook = findPieceList(isWhite).getA_rook();
-		Piece H_rook = findPieceList(isWhite).getH_rook();
+		long rooks = position.getPieceBoard(Position.ROOK, color);
 
 		// If either or both rooks are dead, no bonus
-		if (A_rook == null || H_rook == null)
-			result = 0;
-		else {
-			int A_rookCol = A_rook.getCol();
-			int A_rookRow = A_rook.getRow();
-			int H_rookCol = H_rook.getCol();
-			int H_rookRow = H_rook.getRow();
-
-			// If on same col
-			if (A_rookCol == H_rookCol) {
-				int startRow = Math.min(A_rookRow, H_rookRow);
-				boolean pathBlocked = false;
-				for (int i = 1; i < Math.abs(A_rookRow - H_rookRow); i++)
-					if (controller.getBoardController().getPieceByCoords(
-							startRow + i, A_rookCol) != null)
-						pathBlocked = true;
-				if (!pathBlocked)
-					result = Constants.getConnectedRooksBonusWeight();
-			}
-			// Else if on same row
-			else if (A_rookRow == H_rookRow) {
-
-				int startCol = Math.min(A_rookCol, H_rookCol);
-				boolean pathBlocked = false;
-				for (int i = 1; i < Math.abs(A_rookCol - H_rookCol); i++)
-					if (controller.getBoardController().getPieceByCoords(
-							A_rookRow, startCol + i) != null)
-						pathBlocked = true;
-				if (!pathBlocked)
-					result = Constants.getConnectedRooksBonusWeight();
-			}
-			// If not on same row or col, they are not connected
-			else
-				result = 0;
+		if (position.getPieceCount(Position.ROOK, color) != 2)
+			return result;
+
+		int first = Long.numberOfTrailingZeros(rooks);
+		int second = 63 - Long.numberOfLeadingZeros(rooks);
+
+		// Step from one rook towards the other along their shared row or col
+		int step = 0;
+		if (Position.rowOf(first) == Position.rowOf(second))
+			step = 1;
+		else if (Position.colOf(first) == Position.colOf(second))
+			step = 8;
+
+		// If not on same row or col, they are not connected
+		if (step != 0) {
+			boolean pathBlocked = false;
+			for (int sq = first + step; sq < second; sq += step)
+				if (!position.isEmpty(sq))
+					pathBlocked = true;
+			if (!pathBlocked)
+				result = Constants.getConnectedRooksBonusWeight();
 		}
 		return result;
 	}
 
 	/**
 	 * Returns a bonus for having both bishops, if they are both alive.
-	 * 
-	 * @param isWhite
+	 *
+	 * @param color
 	 * @return
 	 */
-	private int computeBishopPairBonus(boolean isWhite) {
-
-		PieceArray pieces = findPieceList(isWhite);
-		int numBishops = 0;
+	private int computeBishopPairBonus(int color) {
 		int result = 0;
 
-		if (pieces.getPiece(PieceArray.C_bishopId) != null)
-			numBishops++;
-		if (pieces.getPiece(PieceArray.F_bishopId) != null)
-			numBishops++;
-
-		if (numBishops == 2)
+		if (position.hasBishopPair(color))
 			result = Constants.getBishopPairBonusWeight();
 
 		return result;
 	}
 
 	/**
-	 * If we are not yet 10 moves in and the move considered is a central pawn
-	 * push, award bonus points
-	 * 
-	 * @param move
+	 * Awards bonus points for each of the king and queen pawns that has left
+	 * its starting square
+	 *
+	 * @param color
 	 * @return
 	 */
-	private int computeCentralPawnsPushedBonus(boolean isWhite) {
+	private int computeCentralPawnsPushedBonus(int color) {
 		int result = 0;
 		int pawnRow = -1;
-		int col = -1;
-		Piece piece = null;
+		long pawns = position.getPieceBoard(Position.PAWN, color);
 
-		if (isWhite)
+		if (color == Position.WHITE)
 			pawnRow = Constants.getWhitePawnRow();
 		else
 			pawnRow = Constants.getBlackPawnRow();
 
 		// Check King column pawn
-		col = Constants.getKingColumn();
-		piece = controller.getBoardController().getPieceByCoords(pawnRow, col);
-		if ((piece == null) || (piece.getType() != Constants.getPawnChar()))
+		if (!isOn(pawns, pawnRow, Constants.getKingColumn()))
 			result += Constants.getCentralPawnsPushedBonusWeight();
 
 		// Check Queen column pawn
-		col = Constants.getQueenColumn();
-		piece = controller.getBoardController().getPieceByCoords(pawnRow, col);
-		if ((piece == null) || (piece.getType() != Constants.getPawnChar()))
+		if (!isOn(pawns, pawnRow, Constants.getQueenColumn()))
 			result += Constants.getCentralPawnsPushedBonusWeight();
 
 		return result;
@@ -1106,7 +1108,7 @@ public class AI {
 
 	/**
 	 * Returns a reference to the king on the team specified by isWhite.
-	 * 
+	 *
 	 * @param isWhite
 	 * @return
 	 */
@@ -1122,7 +1124,7 @@ public class AI {
 	/**
 	 * Given a color <code>isWhite</code>, returns the arrayList of pieces
 	 * associated with that color.
-	 * 
+	 *
 	 * @param isWhite
 	 * @return
 	 */
@@ -1136,91 +1138,42 @@ public class AI {
 	}
 
 	/**
-	 * Returns a bonus if there have been less than 10 moves and the move being
-	 * considered is a castling move
-	 * 
-	 * @param move
+	 * Returns a bonus if there have been less than 10 moves and the king
+	 * stands castled, with the rook next to it
+	 *
+	 * @param color
 	 * @return
 	 */
-	public int computeCastlingBonus(Piece king) {
+	public int computeCastlingBonus(int color) {
 		int result = 0;
-		if (controller.getModel().getMoveList().size() < 20) {
-			boolean isWhite = king.isWhite();
-
-			for (Move move : controller.getModel().getMoveList()) {
-				if (move.getPiece() == king
-						&& RuleEngine.calculateDeltaColUnsigned(move) == 2)
-					result = Constants.getCastlingBonusWeight();
-			}
-
+		if (position.getPlyCount() < 20) {
+			int homeRow;
+			if (color == Position.WHITE)
+				homeRow = Constants.getWhitePieceRow();
+			else
+				homeRow = Constants.getBlackPieceRow();
+
+			long king = position.getPieceBoard(Position.KING, color);
+			long rooks = position.getPieceBoard(Position.ROOK, color);
+
+			if (isOn(king, homeRow, Constants.getKingsideCastleKingCol())
+					&& isOn(rooks, homeRow, Constants.getKingsideCastleRookCol()))
+				result = Constants.getCastlingBonusWeight();
+			else if (isOn(king, homeRow, Constants.getQueensideCastleKingCol())
+					&& isOn(rooks, homeRow,
+							Constants.getQueensideCastleRookCol()))
+				result = Constants.getCastlingBonusWeight();
 		}
 
 		return result;
 	}
 
 	/**
-	 * Old version of Negamax, replaced by method AlphaBeta.
-	 * 
-	 * @param depth
-	 * @param previousMove
-	 * @param parentNode
-	 * @return
+	 * Returns true if bitboard <code>board</code> has the square at
+	 * <code>row</code>, <code>col</code> set
 	 */
-	@Deprecated
-	public double Negamax(int depth, Move previousMove,
-			DefaultMutableTreeNode parentNode) {
-		if (depth == 0) {
-			// previousMove.timesEvaluated++;
-			// return evaluate(!previousMove.getPiece().isWhite(),
-			// previousMove));
-		}
-		double max = Integer.MIN_VALUE;
-		double score = 0.0;
-
-		boolean isWhite = !previousMove.getPiece().isWhite();
-		ArrayList<Move> legalMoves = controller.getMoveGenerator().findMoves(
-				isWhite);
-		int i = 0;
-		for (Move move : legalMoves) {
-			i++;
-			Piece capturedPiece = RuleEngine.processMove(move);
-
-			DefaultMutableTreeNode node = new DefaultMutableTreeNode();
-			node.setAllowsChildren(true);
-			score = -Negamax(depth - 1, move, node);
-
-			node.setUserObject(i + ", " + move.algebraicNotationPrint() + ": "
-					+ score);
-
-			parentNode.add(node);
-
-			if (score > max)
-				max = score;
-			RuleEngine.undoChanges(capturedPiece, move);
-		}
-		return max;
-	}
-
-	/**
-	 * Calculate how long the previous branch of the tree took to search and
-	 * print to the console.
-	 * 
-	 * @param i
-	 * @param parentNode
-	 * @param startTime
-	 */
-	public void printTimeStats(int i, Node parentNode, long startTime) {
-		long endTime = System.currentTimeMillis();
-		if (printThinkingProgress) {
-			System.out.println("AI.ChooseMove: " + ++i + " of "
-					+ parentNode.getChildren().size()
-
-					+ " branches searched. Time elapsed: "
-					+ (endTime - initTime) / 1000.0
-					+ " seconds, last branch took " + (endTime - startTime)
-					/ 1000.0 + " seconds");
-		}
-		startTime = System.currentTimeMillis();
+	private static boolean isOn(long board, int row, int col) {
+		return (board & (1L << Position.square(row, col))) != 0;
 	}
 
 	public int getBranchCounter() {
@@ -1234,7 +1187,7 @@ public class AI {
 	/**
 	 * Getter to let outside classes know if we are on a NullMoveBranch, since
 	 * there will be a null move if that's the case.
-	 * 
+	 *
 	 * @return
 	 */
 	public boolean isNullMoveBranch() {
@@ -1245,29 +1198,3 @@ public class AI {
 		return isThinking;
 	}
 }
-
-/**
- * Simple comparator implementation so I can use the sort method in the
- * Collection class. This helps move ordering to get tight alpha/beta bounds
- * quickly
- * 
- * @author Matthew
- * 
- */
-class NodeComparator implements Comparator {
-
-	@Override
-	public int compare(Object node1, Object node2) {
-		// TODO Auto-generated method stub neg is less than
-
-		double scoreDifference = (((Node) node1).getScore() - ((Node) node2)
-				.getScore());
-
-		if (scoreDifference > 0)
-			return 1;
-		else if (scoreDifference == 0)
-			return 0;
-		else
-			return -1;
-	}
-}
\ No newline at end of file
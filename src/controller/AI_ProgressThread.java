@@ -3,9 +3,13 @@ package controller;
 public class AI_ProgressThread implements Runnable{
 	Controller controller;
 	AI ai;
+
+	// Separate evaluator, so evaluating never touches the search's buffers
+	AI evaluator;
 	public AI_ProgressThread(Controller controllerIn){
 		controller = controllerIn;
 		ai = controller.getAI();
+		evaluator = new AI(controller);
 	}
 	@Override
 	public void run() {
@@ -16,7 +20,7 @@ public class AI_ProgressThread implements Runnable{
 			text = "Quiet Intrigue is thinking..." + ai.getBranchCounter() + "/" + ai.getNumBranches() + " moves considered.";
 		}
 		else{
-			double score = ai.evaluate(controller.isWhiteTurn(), controller.gameTreeController.root, false);
+			double score = evaluator.evaluate(controller.getModel().getSnapshot().toPosition(), false);
 			text = "It is your turn to move. Evaluation of current position: " + score;
 		}
 		
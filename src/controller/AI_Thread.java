@@ -1,25 +1,35 @@
 package controller;
 
+import model.Node;
+import model.PackedMove;
+import model.PositionSnapshot;
 import view.View;
 
 public class AI_Thread implements Runnable{
 
-	boolean isWhiteTurn;
 	Controller controller;
 	AI ai;
+
+	// Position to search, taken when the thread is created
+	PositionSnapshot snapshot;
 	
-	public AI_Thread(Controller controllerIn, AI aiIn, boolean whiteTurnIn) {
-		isWhiteTurn = whiteTurnIn;
+	public AI_Thread(Controller controllerIn, AI aiIn) {
 		controller = controllerIn;
 		ai = aiIn;
+		snapshot = controller.getModel().getSnapshot();
 	}
 
 	@Override
 	public void run() {
 		// TODO Auto-generated method stub
 		
+		// The search works on its own copy, so the model is only locked to
+		// play the chosen move
+		int move = ai.move(snapshot);
+		
 		synchronized(controller.getModel()){
-		controller.processMove(ai.move(isWhiteTurn));
+		controller.processMove(new Node(PackedMove.toMove(move, controller
+				.getModel().getBoard())));
 		
 		View view = controller.getView();
 		view.update();
@@ -0,0 +1,592 @@
+package controller;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Random;
+
+import model.Model;
+import model.Piece;
+import model.PieceArray;
+import model.Position;
+import model.PositionSnapshot;
+import utils.Constants;
+import utils.Constants.AttackMode;
+
+/**
+ * Headless micro-benchmarks for the engine internals. Run with the name of
+ * the benchmark as the first argument:
+ *
+ * <pre>
+ * java controller.Benchmark eval
+ * java controller.Benchmark picker
+ * java controller.Benchmark mobility
+ * java controller.Benchmark attacks
+ * java controller.Benchmark endgames
+ * java controller.Benchmark smp
+ * java controller.Benchmark cluster
+ * </pre>
+ *
+ * Positions are sampled from random games with a fixed seed, so runs are
+ * comparable with each other.
+ */
+public class Benchmark {
+
+	private final static long seed = 20141017L;
+	private final static int numGames = 64;
+	private final static int maxGameLength = 120;
+	private final static int rounds = 5;
+
+	// Drawn endgames as { name, FEN }, and the depth they are searched to
+	private final static int endgameDepth = 6;
+	private final static String[][] endgames = {
+			{ "K vs K", "8/8/4k3/8/8/3K4/8/8 w - - 0 1" },
+			{ "KB vs K", "8/8/4k3/8/8/3KB3/8/8 w - - 0 1" },
+			{ "KN vs K", "8/8/4k3/8/8/3KN3/8/8 w - - 0 1" },
+			{ "KB vs KB, same colors", "8/8/1b2k3/8/8/3KB3/8/8 w - - 0 1" },
+			{ "KR vs K, fifty moves", "8/8/4k3/8/8/3K4/8/R7 w - - 99 80" } };
+
+	// Middlegame and endgame positions the parallel search is timed on, the
+	// depth it searches them to and the thread counts it is timed with
+	private final static int smpDepth = 5;
+	private final static int[] smpThreads = { 1, 2, 4, 8, 16 };
+
+	// Worker process counts the cluster search is timed with, on the same
+	// positions and depth
+	private final static int[] clusterWorkers = { 1, 2, 4 };
+	private final static String[] smpPositions = {
+			"rnbqkbnr/pppppppp/8/8/8/8/PPPPPPPP/RNBQKBNR w KQkq - 0 1",
+			"r3k2r/p1ppqpb1/bn2pnp1/3PN3/1p2P3/2N2Q1p/PPPBBPPP/R3K2R w KQkq - 0 1",
+			"r4rk1/1pp1qppp/p1np1n2/2b1p1B1/2B1P1b1/P1NP1N2/1PP1QPPP/R4RK1 w - - 0 10",
+			"rnbq1k1r/pp1Pbppp/2p5/8/2B5/8/PPP1NnPP/RNBQK2R w KQ - 1 8",
+			"r1bq1rk1/pp2bppp/2n1pn2/3p4/2PP4/2N2N2/PP2BPPP/R2QKB1R w KQ - 0 8",
+			"8/2p5/3p4/KP5r/1R3p1k/8/4P1P1/8 w - - 0 1" };
+
+	public static void main(String[] args) {
+		String name = args.length > 0 ? args[0] : "eval";
+
+		if (name.equals("eval"))
+			benchmarkEval();
+		else if (name.equals("picker"))
+			benchmarkPicker();
+		else if (name.equals("mobility"))
+			benchmarkMobility();
+		else if (name.equals("attacks"))
+			benchmarkAttacks();
+		else if (name.equals("endgames"))
+			benchmarkEndgames();
+		else if (name.equals("smp"))
+			benchmarkSmp();
+		else if (name.equals("cluster"))
+			benchmarkCluster();
+		else
+			System.out.println("Benchmark: unknown benchmark '" + name
+					+ "'. Known benchmarks: eval, picker, mobility, attacks, endgames, smp, cluster");
+	}
+
+	/**
+	 * Leaf evaluation cost of the material and bishop pair terms. "before"
+	 * scans the two PieceArrays and looks up each piece weight like the
+	 * evaluation used to, "popcount" counts bits in the piece bitboards, and
+	 * "incremental" reads the counters the position keeps during make/unmake.
+	 */
+	private static void benchmarkEval() {
+		ArrayList<Position> positions = samplePositions();
+		int numPositions = positions.size();
+		PieceArray[] whitePieces = new PieceArray[numPositions];
+		PieceArray[] blackPieces = new PieceArray[numPositions];
+		for (int i = 0; i < numPositions; i++) {
+			whitePieces[i] = toPieceArray(positions.get(i), Position.WHITE);
+			blackPieces[i] = toPieceArray(positions.get(i), Position.BLACK);
+		}
+
+		// All three have to agree before the timings mean anything
+		for (int i = 0; i < numPositions; i++) {
+			Position position = positions.get(i);
+			long before = pieceArrayEval(whitePieces[i], blackPieces[i]);
+			long popcount = popcountEval(position);
+			long incremental = incrementalEval(position);
+			if (before != popcount || before != incremental) {
+				System.out.println("Benchmark.eval: ERROR: evaluations disagree on position "
+						+ i);
+				return;
+			}
+		}
+
+		int iterations = Math.max(1, 2000000 / numPositions);
+		System.out.println("Benchmark.eval: " + numPositions + " positions, "
+				+ (long) iterations * numPositions + " leaf evaluations per round");
+
+		for (int round = 1; round <= rounds; round++) {
+			long checksum = 0;
+
+			long start = System.nanoTime();
+			for (int n = 0; n < iterations; n++)
+				for (int i = 0; i < numPositions; i++)
+					checksum += pieceArrayEval(whitePieces[i], blackPieces[i]);
+			long beforeTime = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (int n = 0; n < iterations; n++)
+				for (int i = 0; i < numPositions; i++)
+					checksum += popcountEval(positions.get(i));
+			long popcountTime = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (int n = 0; n < iterations; n++)
+				for (int i = 0; i < numPositions; i++)
+					checksum += incrementalEval(positions.get(i));
+			long incrementalTime = System.nanoTime() - start;
+
+			double evaluations = (double) iterations * numPositions;
+			System.out.println("Round " + round + ": before "
+					+ format(beforeTime / evaluations) + " ns, popcount "
+					+ format(popcountTime / evaluations) + " ns, incremental "
+					+ format(incrementalTime / evaluations) + " ns per leaf"
+					+ " (checksum " + checksum + ")");
+		}
+	}
+
+	/**
+	 * Moves generated per interior search node by the staged MovePicker,
+	 * against the moves generating every legal move up front would have
+	 * produced at the same nodes. Searches every 16th sample position to
+	 * depth 4.
+	 */
+	private static void benchmarkPicker() {
+		ArrayList<Position> positions = samplePositions();
+		AI ai = new AI(null);
+		ai.collectMoveStats = true;
+		int previousDepth = Constants.getDepth();
+		Constants.setDepth(4);
+
+		long nodes = 0;
+		long generated = 0;
+		long available = 0;
+		long start = System.nanoTime();
+		for (int i = 0; i < positions.size(); i += 16) {
+			ai.move(positions.get(i).snapshot());
+			nodes += ai.searchNodes;
+			generated += ai.movesGenerated;
+			available += ai.movesAvailable;
+		}
+		long time = System.nanoTime() - start;
+		Constants.setDepth(previousDepth);
+
+		System.out.println("Benchmark.picker: " + nodes + " interior nodes in "
+				+ format(time / 1e6) + " ms");
+		System.out.println("Staged picker: " + format(generated / (double) nodes)
+				+ " moves generated per node");
+		System.out.println("Full generation: "
+				+ format(available / (double) nodes) + " moves per node ("
+				+ format(100.0 * (available - generated) / available)
+				+ "% fewer generated)");
+	}
+
+	/**
+	 * Cost of the mobility term for both sides of a position. "list"
+	 * generates the legal moves into a buffer like the evaluation used to,
+	 * "legal" counts the same moves without writing them, and "pseudo" counts
+	 * destination squares with popcounts only.
+	 */
+	private static void benchmarkMobility() {
+		ArrayList<Position> positions = samplePositions();
+		int numPositions = positions.size();
+		BitboardMoveGenerator generator = new BitboardMoveGenerator();
+		int[] moves = new int[BitboardMoveGenerator.MAX_MOVES];
+
+		// The legal count has to match the generated list exactly
+		for (int i = 0; i < numPositions; i++) {
+			Position position = positions.get(i);
+			for (int color = Position.WHITE; color <= Position.BLACK; color++) {
+				if (generator.countLegalMoves(position, color) != generator
+						.generateLegalMoves(position, color, moves)) {
+					System.out.println("Benchmark.mobility: ERROR: legal count differs from move list on position "
+							+ i);
+					return;
+				}
+			}
+		}
+
+		int iterations = Math.max(1, 200000 / numPositions);
+		System.out.println("Benchmark.mobility: " + numPositions
+				+ " positions, " + (long) iterations * numPositions
+				+ " evaluations per round");
+
+		for (int round = 1; round <= rounds; round++) {
+			long checksum = 0;
+
+			long start = System.nanoTime();
+			for (int n = 0; n < iterations; n++)
+				for (int i = 0; i < numPositions; i++)
+					checksum += generator.generateLegalMoves(positions.get(i),
+							Position.WHITE, moves)
+							- generator.generateLegalMoves(positions.get(i),
+									Position.BLACK, moves);
+			long listTime = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (int n = 0; n < iterations; n++)
+				for (int i = 0; i < numPositions; i++)
+					checksum += generator.countLegalMoves(positions.get(i),
+							Position.WHITE)
+							- generator.countLegalMoves(positions.get(i),
+									Position.BLACK);
+			long legalTime = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (int n = 0; n < iterations; n++)
+				for (int i = 0; i < numPositions; i++)
+					checksum += generator.countPseudoLegalMoves(
+							positions.get(i), Position.WHITE)
+							- generator.countPseudoLegalMoves(positions.get(i),
+									Position.BLACK);
+			long pseudoTime = System.nanoTime() - start;
+
+			double evaluations = (double) iterations * numPositions;
+			System.out.println("Round " + round + ": list "
+					+ format(listTime / evaluations) + " ns, legal "
+					+ format(legalTime / evaluations) + " ns, pseudo "
+					+ format(pseudoTime / evaluations) + " ns per leaf"
+					+ " (checksum " + checksum + ")");
+		}
+	}
+
+	/**
+	 * Attacks worked out on demand against attack tables kept up to date
+	 * through make/unmake (Constants.AttackMode), on three workloads: "perft"
+	 * to depth 3, which is nearly all make/unmake, "queries", which plays each
+	 * legal move and counts the attackers of every square for both sides, and
+	 * "search", a depth 3 search from an empty transposition table. Which
+	 * mode wins depends on how many attack queries a workload asks per move
+	 * made.
+	 */
+	private static void benchmarkAttacks() {
+		AttackMode previousMode = Constants.getAttackMode();
+		ArrayList<Position> samples = samplePositions();
+		BitboardMoveGenerator generator = new BitboardMoveGenerator();
+		int[] moves = new int[BitboardMoveGenerator.MAX_MOVES];
+		int previousDepth = Constants.getDepth();
+		Constants.setDepth(3);
+
+		// The incremental tables have to match attacks computed from scratch
+		// after every move and take back
+		Constants.setAttackMode(AttackMode.INCREMENTAL);
+		for (int i = 0; i < samples.size(); i += 16) {
+			Position position = new Position(samples.get(i).snapshot());
+			int numMoves = generator.generateLegalMoves(position, moves);
+			for (int j = 0; j < numMoves; j++) {
+				position.makeMove(moves[j]);
+				boolean isCorrect = position.getAttackTable().verify(position);
+				position.unmakeMove(moves[j]);
+				if (!isCorrect || !position.getAttackTable().verify(position)) {
+					System.out.println("Benchmark.attacks: ERROR: attack table out of sync on position "
+							+ i);
+					Constants.setAttackMode(previousMode);
+					Constants.setDepth(previousDepth);
+					return;
+				}
+			}
+		}
+
+		System.out.println("Benchmark.attacks: " + samples.size()
+				+ " query positions, every 16th for perft and search");
+		Perft perft = new Perft();
+		AI ai = new AI(null);
+		for (int round = 1; round <= rounds; round++) {
+			StringBuilder line = new StringBuilder("Round " + round + ":");
+			for (AttackMode mode : AttackMode.values()) {
+				Constants.setAttackMode(mode);
+				ArrayList<Position> positions = new ArrayList<Position>();
+				for (int i = 0; i < samples.size(); i++)
+					positions.add(new Position(samples.get(i).snapshot()));
+
+				long checksum = 0;
+				long start = System.nanoTime();
+				for (int i = 0; i < positions.size(); i += 16)
+					checksum += perft.perft(positions.get(i), 3);
+				long perftTime = System.nanoTime() - start;
+
+				start = System.nanoTime();
+				for (int i = 0; i < positions.size(); i++) {
+					Position position = positions.get(i);
+					int numMoves = generator.generateLegalMoves(position, moves);
+					for (int j = 0; j < numMoves; j++) {
+						position.makeMove(moves[j]);
+						for (int sq = 0; sq < 64; sq++)
+							checksum += position.attackerCount(sq, Position.WHITE)
+									- position.attackerCount(sq, Position.BLACK);
+						position.unmakeMove(moves[j]);
+					}
+				}
+				long queryTime = System.nanoTime() - start;
+
+				// Every pass starts with an empty transposition table
+				if (ai.getTranspositionTable() != null)
+					ai.getTranspositionTable().clear();
+				start = System.nanoTime();
+				for (int i = 0; i < samples.size(); i += 16)
+					ai.move(samples.get(i).snapshot());
+				long searchTime = System.nanoTime() - start;
+
+				line.append(" " + mode + " perft " + format(perftTime / 1e6)
+						+ " ms, queries " + format(queryTime / 1e6)
+						+ " ms, search " + format(searchTime / 1e6)
+						+ " ms (checksum " + checksum + ");");
+			}
+			System.out.println(line);
+		}
+		Constants.setAttackMode(previousMode);
+		Constants.setDepth(previousDepth);
+	}
+
+	/**
+	 * Search nodes and time in drawn endgames with fifty move and
+	 * insufficient material recognition off ("before") and on ("after").
+	 * Each pass starts with an empty transposition table.
+	 */
+	private static void benchmarkEndgames() {
+		int previousDepth = Constants.getDepth();
+		Constants.setDepth(endgameDepth);
+		AI ai = new AI(null);
+
+		System.out.println("Benchmark.endgames: depth " + endgameDepth);
+		for (int i = 0; i < endgames.length; i++) {
+			PositionSnapshot snapshot = new Position(endgames[i][1]).snapshot();
+			StringBuilder line = new StringBuilder(String.format("%-28s",
+					endgames[i][0]));
+			for (int pass = 0; pass < 2; pass++) {
+				ai.recognizeDraws = pass == 1;
+				if (ai.getTranspositionTable() != null)
+					ai.getTranspositionTable().clear();
+				long start = System.nanoTime();
+				ai.move(snapshot);
+				long time = System.nanoTime() - start;
+				line.append((pass == 0 ? " before " : ", after ")
+						+ ai.searchNodes + " nodes " + format(time / 1e6)
+						+ " ms");
+			}
+			System.out.println(line);
+		}
+		ai.recognizeDraws = true;
+		Constants.setDepth(previousDepth);
+	}
+
+	/**
+	 * Time to depth of the lazy SMP search for each thread count, summed over
+	 * the position suite, and the speedup over one thread. Every position
+	 * starts with an empty transposition table. The suite is searched once
+	 * untimed first so the JIT has compiled the search.
+	 */
+	private static void benchmarkSmp() {
+		int previousDepth = Constants.getDepth();
+		int previousThreads = Constants.getSearchThreads();
+		Constants.setDepth(smpDepth);
+
+		PositionSnapshot[] snapshots = new PositionSnapshot[smpPositions.length];
+		for (int i = 0; i < smpPositions.length; i++)
+			snapshots[i] = new Position(smpPositions[i]).snapshot();
+
+		Constants.setSearchThreads(1);
+		AI warmUp = new AI(null);
+		for (int i = 0; i < snapshots.length; i++)
+			warmUp.move(snapshots[i]);
+
+		System.out.println("Benchmark.smp: depth " + smpDepth + ", "
+				+ snapshots.length + " positions, "
+				+ Runtime.getRuntime().availableProcessors() + " processors");
+		int[] singleThreadMoves = new int[snapshots.length];
+		double singleThreadTime = 0;
+		for (int t = 0; t < smpThreads.length; t++) {
+			Constants.setSearchThreads(smpThreads[t]);
+			AI ai = new AI(null);
+			long total = 0;
+			int sameMoves = 0;
+			for (int i = 0; i < snapshots.length; i++) {
+				if (ai.getTranspositionTable() != null)
+					ai.getTranspositionTable().clear();
+				long start = System.nanoTime();
+				int move = ai.move(snapshots[i]);
+				total += System.nanoTime() - start;
+				if (t == 0)
+					singleThreadMoves[i] = move;
+				if (move == singleThreadMoves[i])
+					sameMoves++;
+			}
+			if (t == 0)
+				singleThreadTime = total;
+			System.out.println(String.format("%2d", smpThreads[t])
+					+ " threads: " + format(total / 1e6) + " ms, speedup "
+					+ String.format("%.2f", singleThreadTime / total) + ", "
+					+ sameMoves + "/" + snapshots.length
+					+ " moves as with one thread");
+		}
+		Constants.setSearchThreads(previousThreads);
+		Constants.setDepth(previousDepth);
+	}
+
+	/**
+	 * Time to depth of the cluster search for each number of worker
+	 * processes on the smp positions, against one local search thread.
+	 * Starting the workers is not timed, and each cluster searches the suite
+	 * once untimed so the workers' JITs have compiled the search. Workers
+	 * keep their transposition tables from the warm-up, so the local search
+	 * is timed the same way.
+	 */
+	private static void benchmarkCluster() {
+		int previousDepth = Constants.getDepth();
+		Constants.setDepth(smpDepth);
+
+		PositionSnapshot[] snapshots = new PositionSnapshot[smpPositions.length];
+		for (int i = 0; i < smpPositions.length; i++)
+			snapshots[i] = new Position(smpPositions[i]).snapshot();
+
+		System.out.println("Benchmark.cluster: depth " + smpDepth + ", "
+				+ snapshots.length + " positions, "
+				+ Runtime.getRuntime().availableProcessors() + " processors");
+
+		AI ai = new AI(null);
+		int[] localMoves = new int[snapshots.length];
+		for (int i = 0; i < snapshots.length; i++)
+			ai.move(snapshots[i]);
+		long localTime = 0;
+		for (int i = 0; i < snapshots.length; i++) {
+			long start = System.nanoTime();
+			localMoves[i] = ai.move(snapshots[i]);
+			localTime += System.nanoTime() - start;
+		}
+		System.out.println("local    : " + format(localTime / 1e6) + " ms");
+
+		for (int c = 0; c < clusterWorkers.length; c++) {
+			ClusterCoordinator cluster = null;
+			try {
+				cluster = new ClusterCoordinator(clusterWorkers[c]);
+				for (int i = 0; i < snapshots.length; i++)
+					cluster.search(snapshots[i], smpDepth);
+				long total = 0;
+				int sameMoves = 0;
+				for (int i = 0; i < snapshots.length; i++) {
+					long start = System.nanoTime();
+					int move = cluster.search(snapshots[i], smpDepth);
+					total += System.nanoTime() - start;
+					if (move == localMoves[i])
+						sameMoves++;
+				}
+				System.out.println(String.format("%d workers", clusterWorkers[c])
+						+ ": " + format(total / 1e6) + " ms, speedup "
+						+ String.format("%.2f", (double) localTime / total)
+						+ ", " + sameMoves + "/" + snapshots.length
+						+ " moves as the local search");
+			} catch (IOException e) {
+				System.out.println("Benchmark.cluster: " + clusterWorkers[c]
+						+ " workers failed: " + e.getMessage());
+			} finally {
+				if (cluster != null)
+					cluster.close();
+			}
+		}
+		Constants.setDepth(previousDepth);
+	}
+
+	/**
+	 * Material and bishop pair terms the way AI computed them from the piece
+	 * lists: every slot of both PieceArrays plus the weight if-chain.
+	 */
+	private static long pieceArrayEval(PieceArray whitePieces,
+			PieceArray blackPieces) {
+		int whiteScore = 0;
+		int blackScore = 0;
+		int whiteBishops = 0;
+		int blackBishops = 0;
+		for (int i = 0; i < PieceArray.numPieces; i++) {
+			Piece piece = whitePieces.getPiece(i);
+			if (piece != null) {
+				whiteScore += Constants.getPieceWeight(piece);
+				if (piece.getType() == Constants.getBishopChar())
+					whiteBishops++;
+			}
+		}
+		for (int i = 0; i < PieceArray.numPieces; i++) {
+			Piece piece = blackPieces.getPiece(i);
+			if (piece != null) {
+				blackScore += Constants.getPieceWeight(piece);
+				if (piece.getType() == Constants.getBishopChar())
+					blackBishops++;
+			}
+		}
+		return combine(whiteScore - blackScore, whiteBishops >= 2,
+				blackBishops >= 2);
+	}
+
+	private static long popcountEval(Position position) {
+		int whiteScore = 0;
+		int blackScore = 0;
+		for (int type = Position.PAWN; type <= Position.KING; type++) {
+			whiteScore += AI.pieceWeights[type]
+					* Long.bitCount(position.getPieceBoard(type, Position.WHITE));
+			blackScore += AI.pieceWeights[type]
+					* Long.bitCount(position.getPieceBoard(type, Position.BLACK));
+		}
+		return combine(whiteScore - blackScore,
+				Long.bitCount(position.getPieceBoard(Position.BISHOP,
+						Position.WHITE)) >= 2, Long.bitCount(position
+						.getPieceBoard(Position.BISHOP, Position.BLACK)) >= 2);
+	}
+
+	private static long incrementalEval(Position position) {
+		return combine(position.getMaterialBalance(),
+				position.hasBishopPair(Position.WHITE),
+				position.hasBishopPair(Position.BLACK));
+	}
+
+	private static long combine(int material, boolean whitePair,
+			boolean blackPair) {
+		return material * 4L + (whitePair ? 2 : 0) + (blackPair ? 1 : 0);
+	}
+
+	/**
+	 * Plays random legal moves from the start position and keeps a copy of
+	 * every position reached.
+	 */
+	private static ArrayList<Position> samplePositions() {
+		Random random = new Random(seed);
+		BitboardMoveGenerator generator = new BitboardMoveGenerator();
+		int[] moves = new int[BitboardMoveGenerator.MAX_MOVES];
+		ArrayList<Position> result = new ArrayList<Position>();
+
+		Position start = new Model().getPosition();
+		for (int game = 0; game < numGames; game++) {
+			Position position = new Position(start.snapshot());
+			for (int ply = 0; ply < maxGameLength; ply++) {
+				int numMoves = generator.generateLegalMoves(position, moves);
+				if (numMoves == 0)
+					break;
+				position.makeMove(moves[random.nextInt(numMoves)]);
+				result.add(new Position(position.snapshot()));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Builds the PieceArray the Model would hold for side <code>color</code>
+	 * of <code>position</code>.
+	 */
+	private static PieceArray toPieceArray(Position position, int color) {
+		PieceArray result = new PieceArray();
+		long pieces = position.getOccupancy(color);
+		int id = 0;
+		while (pieces != 0) {
+			int sq = Long.numberOfTrailingZeros(pieces);
+			pieces &= pieces - 1;
+			char type = Position.charFromType(Position.typeOf(position
+					.pieceAt(sq)));
+			result.add(new Piece(type, color == Position.WHITE, true, Position
+					.rowOf(sq), Position.colOf(sq), id++));
+		}
+		return result;
+	}
+
+	private static String format(double value) {
+		return String.format("%.2f", value);
+	}
+}
@@ -0,0 +1,641 @@
+package controller;
+
+import model.PackedMove;
+import model.Position;
+import utils.Bitboards;
+import utils.Constants.GameStatus;
+
+/**
+ * Generates moves for a bitboard Position as packed ints (see PackedMove). The
+ * caller passes in the array to fill, so the search can reuse one
+ * preallocated buffer per ply and never allocates while generating.
+ *
+ * <p>
+ * Legal moves are generated directly rather than by playing every pseudo legal
+ * move and looking at the king afterwards. The pieces giving check, the
+ * squares that answer a check and the pinned pieces are worked out once per
+ * call, and every move is then filtered with bit masks. Only king moves and en
+ * passant captures need an explicit attack test.
+ *
+ * <p>
+ * The generator keeps no state between calls, so one instance can serve any
+ * number of positions. It does own a scratch move list, so an instance
+ * belongs to one thread.
+ */
+public class BitboardMoveGenerator {
+
+	// Enough for any legal chess position (the known maximum is 218)
+	public final static int MAX_MOVES = 256;
+
+	// Every square, for callers that want moves of all pieces
+	public final static long ALL_SQUARES = ~0L;
+
+	// Which moves generate writes out. Captures include every promotion, so
+	// the two kinds together are exactly all moves.
+	private final static int ALL_MOVES = 0;
+	private final static int CAPTURES = 1;
+	private final static int QUIET_MOVES = 2;
+
+	// Rows a pawn promotes on
+	private final static long promotionRows = 0xFF000000000000FFL;
+
+	// Promotion choices, best first so move ordering tries the queen first
+	private final static int[] promotionTypes = { Position.QUEEN,
+			Position.ROOK, Position.BISHOP, Position.KNIGHT };
+
+	// Moves countLegalMoves writes out when there is no king to count
+	// against, and throws away
+	private final int[] countBuffer = new int[MAX_MOVES];
+
+	/**
+	 * Writes every legal move of the side to move into <code>moves</code>
+	 * and returns how many there are.
+	 *
+	 * @param position
+	 * @param moves
+	 * @return
+	 */
+	public int generateLegalMoves(Position position, int[] moves) {
+		return generateLegalMoves(position, position.getSideToMove(),
+				ALL_SQUARES, moves);
+	}
+
+	/**
+	 * Writes every legal move of color <code>color</code> into
+	 * <code>moves</code> and returns how many there are.
+	 *
+	 * @param position
+	 * @param color
+	 * @param moves
+	 * @return
+	 */
+	public int generateLegalMoves(Position position, int color, int[] moves) {
+		return generateLegalMoves(position, color, ALL_SQUARES, moves);
+	}
+
+	/**
+	 * Writes the legal moves of the pieces of color <code>color</code> that
+	 * stand on one of <code>fromSquares</code> into <code>moves</code> and
+	 * returns how many there are. The position is left unchanged.
+	 *
+	 * @param position
+	 * @param color
+	 * @param fromSquares
+	 * @param moves
+	 * @return
+	 */
+	public int generateLegalMoves(Position position, int color,
+			long fromSquares, int[] moves) {
+		return generate(position, color, fromSquares, ALL_MOVES, moves);
+	}
+
+	/**
+	 * Writes the legal captures and promotions of the side to move into
+	 * <code>moves</code> and returns how many there are.
+	 *
+	 * @param position
+	 * @param moves
+	 * @return
+	 */
+	public int generateCaptures(Position position, int[] moves) {
+		return generate(position, position.getSideToMove(), ALL_SQUARES,
+				CAPTURES, moves);
+	}
+
+	/**
+	 * Writes the moves quiescence search looks at into <code>moves</code>
+	 * and returns how many there are: the legal captures and promotions of
+	 * the side to move, or every legal move if it is in check, since then
+	 * every move is an evasion.
+	 *
+	 * @param position
+	 * @param moves
+	 * @return
+	 */
+	public int generateQuiescenceMoves(Position position, int[] moves) {
+		int color = position.getSideToMove();
+		return generate(position, color, ALL_SQUARES,
+				position.isInCheck(color) ? ALL_MOVES : CAPTURES, moves);
+	}
+
+	/**
+	 * Writes the legal moves of the side to move that are neither captures
+	 * nor promotions into <code>moves</code> and returns how many there are.
+	 * Together with generateCaptures this gives every legal move once.
+	 *
+	 * @param position
+	 * @param moves
+	 * @return
+	 */
+	public int generateQuietMoves(Position position, int[] moves) {
+		return generate(position, position.getSideToMove(), ALL_SQUARES,
+				QUIET_MOVES, moves);
+	}
+
+	/**
+	 * Returns the number of legal moves of color <code>color</code>, the same
+	 * number generateLegalMoves would return, without writing any moves out.
+	 * Destination sets are counted with popcounts; only king moves and en
+	 * passant captures are tested one by one.
+	 *
+	 * @param position
+	 * @param color
+	 * @return
+	 */
+	public int countLegalMoves(Position position, int color) {
+		int enemy = color ^ 1;
+		long own = position.getOccupancy(color);
+		long occupied = position.getOccupied();
+		int kingSquare = position.getKingSquare(color);
+		if (kingSquare == Position.NO_SQUARE)
+			return generatePseudoLegalMoves(position, color, countBuffer);
+
+		int count = 0;
+		long kingBit = 1L << kingSquare;
+		long checkers = position.attackersOf(kingSquare, enemy, occupied);
+
+		long withoutKing = occupied ^ kingBit;
+		long kingTargets = Bitboards.kingAttacks(kingSquare) & ~own;
+		while (kingTargets != 0) {
+			int to = Long.numberOfTrailingZeros(kingTargets);
+			kingTargets &= kingTargets - 1;
+			if (position.attackersOf(to, enemy, withoutKing) == 0)
+				count++;
+		}
+		if (checkers == 0) {
+			if (position.canCastle(color, true))
+				count++;
+			if (position.canCastle(color, false))
+				count++;
+		}
+		if (Long.bitCount(checkers) > 1)
+			return count;
+
+		long checkMask = ALL_SQUARES;
+		if (checkers != 0)
+			checkMask = checkers
+					| Bitboards.between(kingSquare,
+							Long.numberOfTrailingZeros(checkers));
+
+		long pinned = findPinned(position, color, kingSquare);
+		long pieces = own & ~kingBit;
+		while (pieces != 0) {
+			int from = Long.numberOfTrailingZeros(pieces);
+			pieces &= pieces - 1;
+			long allowed = checkMask & ~own;
+			if ((pinned & (1L << from)) != 0)
+				allowed &= Bitboards.line(kingSquare, from);
+			count += countPieceMoves(position, from, color, occupied, allowed);
+		}
+
+		int enPassantSquare = position.getEnPassantSquare();
+		if (enPassantSquare != Position.NO_SQUARE
+				&& color == position.getSideToMove()) {
+			int piece = Position.pieceCode(Position.PAWN, color);
+			long pawns = Bitboards.pawnAttacks(enPassantSquare, enemy)
+					& position.getPieceBoard(piece);
+			while (pawns != 0) {
+				int from = Long.numberOfTrailingZeros(pawns);
+				pawns &= pawns - 1;
+				if (isLegal(position, PackedMove.encode(from, enPassantSquare,
+						piece, Position.pieceCode(Position.PAWN, enemy), 0,
+						PackedMove.FLAG_EN_PASSANT)))
+					count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the number of squares the pieces of color <code>color</code>
+	 * attack or, for pawns, can push to, leaving out squares that hold one of
+	 * their own pieces. Pins, checks, castling and en passant are ignored and
+	 * a promotion counts once, so this is only a measure of mobility, not a
+	 * move count.
+	 *
+	 * @param position
+	 * @param color
+	 * @return
+	 */
+	public int countPseudoLegalMoves(Position position, int color) {
+		long own = position.getOccupancy(color);
+		long occupied = position.getOccupied();
+		int count = 0;
+
+		// Queens are counted once as a rook and once as a bishop
+		long queens = position.getPieceBoard(Position.QUEEN, color);
+		long pieces = position.getPieceBoard(Position.KNIGHT, color);
+		while (pieces != 0) {
+			int from = Long.numberOfTrailingZeros(pieces);
+			pieces &= pieces - 1;
+			count += Long.bitCount(Bitboards.knightAttacks(from) & ~own);
+		}
+		pieces = position.getPieceBoard(Position.BISHOP, color) | queens;
+		while (pieces != 0) {
+			int from = Long.numberOfTrailingZeros(pieces);
+			pieces &= pieces - 1;
+			count += Long.bitCount(Bitboards.bishopAttacks(from, occupied)
+					& ~own);
+		}
+		pieces = position.getPieceBoard(Position.ROOK, color) | queens;
+		while (pieces != 0) {
+			int from = Long.numberOfTrailingZeros(pieces);
+			pieces &= pieces - 1;
+			count += Long.bitCount(Bitboards.rookAttacks(from, occupied)
+					& ~own);
+		}
+		long king = position.getPieceBoard(Position.KING, color);
+		if (king != 0)
+			count += Long.bitCount(Bitboards.kingAttacks(Long
+					.numberOfTrailingZeros(king)) & ~own);
+
+		// All pawns of one color at once: captures, single and double pushes
+		long pawns = position.getPieceBoard(Position.PAWN, color);
+		long enemies = position.getOccupancy(color ^ 1);
+		long empty = ~occupied;
+		if (color == Position.WHITE) {
+			long singles = (pawns << 8) & empty;
+			long doubles = ((singles & 0x0000000000FF0000L) << 8) & empty;
+			long captures = (((pawns & ~0x0101010101010101L) << 7) & enemies)
+					| (((pawns & ~0x8080808080808080L) << 9) & enemies);
+			count += Long.bitCount(singles) + Long.bitCount(doubles)
+					+ Long.bitCount(captures);
+		} else {
+			long singles = (pawns >>> 8) & empty;
+			long doubles = ((singles & 0x0000FF0000000000L) >>> 8) & empty;
+			long captures = (((pawns & ~0x0101010101010101L) >>> 9) & enemies)
+					| (((pawns & ~0x8080808080808080L) >>> 7) & enemies);
+			count += Long.bitCount(singles) + Long.bitCount(doubles)
+					+ Long.bitCount(captures);
+		}
+		return count;
+	}
+
+	/**
+	 * Legal move generation behind the public methods. <code>mode</code> is
+	 * one of ALL_MOVES, CAPTURES and QUIET_MOVES.
+	 */
+	private int generate(Position position, int color, long fromSquares,
+			int mode, int[] moves) {
+		int enemy = color ^ 1;
+		long own = position.getOccupancy(color);
+		long occupied = position.getOccupied();
+		int kingSquare = position.getKingSquare(color);
+
+		// Without a king nothing can be pinned or in check
+		if (kingSquare == Position.NO_SQUARE)
+			return generatePseudoLegalMoves(position, color, fromSquares, moves);
+
+		int count = 0;
+		long kingBit = 1L << kingSquare;
+		long checkers = position.attackersOf(kingSquare, enemy, occupied);
+
+		// Where pieces may land, and where pawns may push to
+		long targets = ~own;
+		long pushTargets = ALL_SQUARES;
+		if (mode == CAPTURES) {
+			targets = position.getOccupancy(enemy);
+			pushTargets = promotionRows;
+		} else if (mode == QUIET_MOVES) {
+			targets = ~occupied;
+			pushTargets = ~promotionRows;
+		}
+
+		if ((fromSquares & kingBit) != 0) {
+			int king = position.pieceAt(kingSquare);
+
+			// Take the king off the board for the test, or a slider checking
+			// along a line would still seem blocked by it on the square behind
+			long withoutKing = occupied ^ kingBit;
+			long kingTargets = Bitboards.kingAttacks(kingSquare) & targets;
+			while (kingTargets != 0) {
+				int to = Long.numberOfTrailingZeros(kingTargets);
+				kingTargets &= kingTargets - 1;
+				if (position.attackersOf(to, enemy, withoutKing) == 0)
+					moves[count++] = PackedMove.encode(kingSquare, to, king,
+							position.pieceAt(to), 0, PackedMove.FLAG_NONE);
+			}
+			if (checkers == 0 && mode != CAPTURES)
+				count = addCastlingMoves(position, kingSquare, king, color,
+						moves, count);
+		}
+
+		// In double check only the king can move
+		if (Long.bitCount(checkers) > 1)
+			return count;
+
+		// Squares that capture the checker or block its line
+		long checkMask = ALL_SQUARES;
+		if (checkers != 0)
+			checkMask = checkers
+					| Bitboards.between(kingSquare,
+							Long.numberOfTrailingZeros(checkers));
+
+		long pinned = findPinned(position, color, kingSquare);
+		long pieces = own & ~kingBit & fromSquares;
+		while (pieces != 0) {
+			int from = Long.numberOfTrailingZeros(pieces);
+			pieces &= pieces - 1;
+
+			// A pinned piece can only move along the line through its king
+			long allowed = checkMask;
+			if ((pinned & (1L << from)) != 0)
+				allowed &= Bitboards.line(kingSquare, from);
+			count = addPieceMoves(position, from, color, occupied, targets
+					& allowed, pushTargets & allowed, moves, count);
+		}
+		if (mode == QUIET_MOVES)
+			return count;
+
+		// En passant removes two pieces from one line, which the masks above
+		// don't describe, so those captures are played out and tested
+		int numPseudoLegal = addEnPassantMoves(position, color, fromSquares,
+				moves, count);
+		for (int i = count; i < numPseudoLegal; i++)
+			if (isLegal(position, moves[i]))
+				moves[count++] = moves[i];
+		return count;
+	}
+
+	/**
+	 * Returns the status of the game for the side to move in
+	 * <code>position</code>. The moves are only counted, and not at all if
+	 * the position still has the status from an earlier call.
+	 *
+	 * @param position
+	 * @return
+	 */
+	public GameStatus getGameStatus(Position position) {
+		GameStatus result = position.getCachedGameStatus();
+		if (result == null)
+			result = position.gameStatus(countLegalMoves(position,
+					position.getSideToMove()));
+		return result;
+	}
+
+	/**
+	 * Returns true if playing <code>move</code> does not leave the mover's
+	 * own king attacked. The position is left unchanged.
+	 *
+	 * @param position
+	 * @param move
+	 * @return
+	 */
+	public boolean isLegal(Position position, int move) {
+		int color = Position.colorOf(PackedMove.getPiece(move));
+		position.makeMove(move);
+		boolean result = !position.isInCheck(color);
+		position.unmakeMove(move);
+		return result;
+	}
+
+	/**
+	 * Writes every move of color <code>color</code> that follows the piece
+	 * movement rules, without checking if the king is left in check.
+	 *
+	 * @param position
+	 * @param color
+	 * @param moves
+	 * @return
+	 */
+	public int generatePseudoLegalMoves(Position position, int color,
+			int[] moves) {
+		return generatePseudoLegalMoves(position, color, ALL_SQUARES, moves);
+	}
+
+	/**
+	 * Writes the moves of the pieces of color <code>color</code> on
+	 * <code>fromSquares</code> that follow the piece movement rules, without
+	 * checking if the king is left in check.
+	 *
+	 * @param position
+	 * @param color
+	 * @param fromSquares
+	 * @param moves
+	 * @return
+	 */
+	public int generatePseudoLegalMoves(Position position, int color,
+			long fromSquares, int[] moves) {
+		int count = 0;
+		long occupied = position.getOccupied();
+		long targets = ~position.getOccupancy(color);
+		long pieces = position.getOccupancy(color) & fromSquares;
+		while (pieces != 0) {
+			int from = Long.numberOfTrailingZeros(pieces);
+			pieces &= pieces - 1;
+			count = addPieceMoves(position, from, color, occupied, targets,
+					ALL_SQUARES, moves, count);
+			if (Position.typeOf(position.pieceAt(from)) == Position.KING)
+				count = addCastlingMoves(position, from, position.pieceAt(from),
+						color, moves, count);
+		}
+		return addEnPassantMoves(position, color, fromSquares, moves, count);
+	}
+
+	/**
+	 * Returns the pieces of color <code>color</code> that are the only piece
+	 * between their king and an enemy slider.
+	 */
+	private long findPinned(Position position, int color, int kingSquare) {
+		int enemy = color ^ 1;
+		long enemies = position.getOccupancy(enemy);
+		long queens = position.getPieceBoard(Position.QUEEN, enemy);
+
+		// Enemy sliders that would hit the king if only enemy pieces were on
+		// the board
+		long snipers = (Bitboards.rookAttacks(kingSquare, enemies) & (position
+				.getPieceBoard(Position.ROOK, enemy) | queens))
+				| (Bitboards.bishopAttacks(kingSquare, enemies) & (position
+						.getPieceBoard(Position.BISHOP, enemy) | queens));
+
+		long result = 0L;
+		long occupied = position.getOccupied();
+		while (snipers != 0) {
+			int sq = Long.numberOfTrailingZeros(snipers);
+			snipers &= snipers - 1;
+			long blockers = Bitboards.between(kingSquare, sq) & occupied;
+			if (Long.bitCount(blockers) == 1)
+				result |= blockers & position.getOccupancy(color);
+		}
+		return result;
+	}
+
+	/**
+	 * Adds the moves of the piece on <code>from</code> to the squares in
+	 * <code>targets</code>, or for pawn pushes <code>pushTargets</code>.
+	 * Castling and en passant are left to their own methods.
+	 */
+	private int addPieceMoves(Position position, int from, int color,
+			long occupied, long targets, long pushTargets, int[] moves,
+			int count) {
+		int piece = position.pieceAt(from);
+		int type = Position.typeOf(piece);
+
+		if (type == Position.PAWN)
+			return addPawnMoves(position, from, piece, color, targets,
+					pushTargets, moves, count);
+		else if (type == Position.KNIGHT)
+			targets &= Bitboards.knightAttacks(from);
+		else if (type == Position.BISHOP)
+			targets &= Bitboards.bishopAttacks(from, occupied);
+		else if (type == Position.ROOK)
+			targets &= Bitboards.rookAttacks(from, occupied);
+		else if (type == Position.QUEEN)
+			targets &= Bitboards.queenAttacks(from, occupied);
+		else
+			targets &= Bitboards.kingAttacks(from);
+		return addMoves(position, from, piece, targets, moves, count);
+	}
+
+	/**
+	 * Counts the moves of the piece on <code>from</code> that land on
+	 * <code>allowed</code>, with each promotion counted four times like
+	 * addPawnMove writes it. Castling and en passant are left out.
+	 */
+	private int countPieceMoves(Position position, int from, int color,
+			long occupied, long allowed) {
+		int type = Position.typeOf(position.pieceAt(from));
+		if (type == Position.KNIGHT)
+			return Long.bitCount(Bitboards.knightAttacks(from) & allowed);
+		else if (type == Position.BISHOP)
+			return Long.bitCount(Bitboards.bishopAttacks(from, occupied)
+					& allowed);
+		else if (type == Position.ROOK)
+			return Long.bitCount(Bitboards.rookAttacks(from, occupied)
+					& allowed);
+		else if (type == Position.QUEEN)
+			return Long.bitCount(Bitboards.queenAttacks(from, occupied)
+					& allowed);
+		else if (type == Position.KING)
+			return Long.bitCount(Bitboards.kingAttacks(from) & allowed);
+
+		int direction = color == Position.WHITE ? 8 : -8;
+		int startRow = color == Position.WHITE ? 1 : 6;
+		long destinations = Bitboards.pawnAttacks(from, color)
+				& position.getOccupancy(color ^ 1);
+		int to = from + direction;
+		if (position.isEmpty(to)) {
+			destinations |= 1L << to;
+			if (Position.rowOf(from) == startRow
+					&& position.isEmpty(to + direction))
+				destinations |= 1L << (to + direction);
+		}
+		destinations &= allowed;
+		return Long.bitCount(destinations)
+				+ 3 * Long.bitCount(destinations & promotionRows);
+	}
+
+	/**
+	 * Adds captures onto <code>targets</code> and pushes onto
+	 * <code>pushTargets</code> for the pawn on square <code>from</code>,
+	 * promoting on the last rank.
+	 */
+	private int addPawnMoves(Position position, int from, int piece,
+			int color, long targets, long pushTargets, int[] moves, int count) {
+		int row = Position.rowOf(from);
+		int col = Position.colOf(from);
+		int direction = color == Position.WHITE ? 1 : -1;
+		int startRow = color == Position.WHITE ? 1 : 6;
+
+		// Pawns never stand on the last rank, so the push is always on the
+		// board. A double push may answer a check the single push can't, so
+		// the mask is only applied to the square each one lands on.
+		int to = Position.square(row + direction, col);
+		if (position.isEmpty(to)) {
+			if ((pushTargets & (1L << to)) != 0)
+				count = addPawnMove(from, to, piece, Position.EMPTY, moves,
+						count);
+
+			int doubleTo = Position.square(row + 2 * direction, col);
+			if (row == startRow && position.isEmpty(doubleTo)
+					&& (pushTargets & (1L << doubleTo)) != 0)
+				moves[count++] = PackedMove.encode(from, doubleTo, piece,
+						Position.EMPTY, 0, PackedMove.FLAG_DOUBLE_PUSH);
+		}
+
+		long captures = Bitboards.pawnAttacks(from, color)
+				& position.getOccupancy(color ^ 1) & targets;
+		while (captures != 0) {
+			to = Long.numberOfTrailingZeros(captures);
+			captures &= captures - 1;
+			count = addPawnMove(from, to, piece, position.pieceAt(to), moves,
+					count);
+		}
+		return count;
+	}
+
+	/**
+	 * Adds the en passant captures of the pawns of color <code>color</code> on
+	 * <code>fromSquares</code>. Only the side to move can capture en passant.
+	 */
+	private int addEnPassantMoves(Position position, int color,
+			long fromSquares, int[] moves, int count) {
+		int enPassantSquare = position.getEnPassantSquare();
+		if (enPassantSquare == Position.NO_SQUARE
+				|| color != position.getSideToMove())
+			return count;
+
+		int piece = Position.pieceCode(Position.PAWN, color);
+		int captured = Position.pieceCode(Position.PAWN, color ^ 1);
+
+		// Our pawns stand where an enemy pawn on the en passant square would
+		// attack
+		long pawns = Bitboards.pawnAttacks(enPassantSquare, color ^ 1)
+				& position.getPieceBoard(piece) & fromSquares;
+		while (pawns != 0) {
+			int from = Long.numberOfTrailingZeros(pawns);
+			pawns &= pawns - 1;
+			moves[count++] = PackedMove.encode(from, enPassantSquare, piece,
+					captured, 0, PackedMove.FLAG_EN_PASSANT);
+		}
+		return count;
+	}
+
+	/**
+	 * Adds a single pawn move, expanded into the four promotion choices if it
+	 * lands on the last rank.
+	 */
+	private int addPawnMove(int from, int to, int piece, int captured,
+			int[] moves, int count) {
+		int row = Position.rowOf(to);
+		if (row == 0 || row == 7) {
+			for (int i = 0; i < promotionTypes.length; i++)
+				moves[count++] = PackedMove.encode(from, to, piece, captured,
+						promotionTypes[i], PackedMove.FLAG_NONE);
+		} else
+			moves[count++] = PackedMove.encode(from, to, piece, captured, 0,
+					PackedMove.FLAG_NONE);
+		return count;
+	}
+
+	/**
+	 * Adds a move from <code>from</code> to every square in
+	 * <code>targets</code>, capturing whatever stands there.
+	 */
+	private int addMoves(Position position, int from, int piece,
+			long targets, int[] moves, int count) {
+		while (targets != 0) {
+			int to = Long.numberOfTrailingZeros(targets);
+			targets &= targets - 1;
+			moves[count++] = PackedMove.encode(from, to, piece,
+					position.pieceAt(to), 0, PackedMove.FLAG_NONE);
+		}
+		return count;
+	}
+
+	/**
+	 * Adds castling moves if the rights are still there, the squares between
+	 * king and rook are empty, and the king does not start in, pass through
+	 * or land in check.
+	 */
+	private int addCastlingMoves(Position position, int from, int piece,
+			int color, int[] moves, int count) {
+		if (position.canCastle(color, true))
+			moves[count++] = PackedMove.encode(from, from + 2, piece,
+					Position.EMPTY, 0, PackedMove.FLAG_CASTLE);
+		if (position.canCastle(color, false))
+			moves[count++] = PackedMove.encode(from, from - 2, piece,
+					Position.EMPTY, 0, PackedMove.FLAG_CASTLE);
+		return count;
+	}
+}
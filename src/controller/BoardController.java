@@ -3,7 +3,13 @@ package controller;
 import model.Model;
 import model.Move;
 import model.Piece;
+import model.Position;
 
+/**
+ * Reads and writes the Piece[][] board in the model. Every write is mirrored
+ * into the model's bitboard Position, so the GUI can keep working with Piece
+ * objects while the engine reads the bitboards.
+ */
 public class BoardController {
 
 	Model model;
@@ -60,6 +66,7 @@ public class BoardController {
 			System.out.println("BoardController.setPieceByCoords: Error; attempt to move null piece ignored.");
 		else{
 			model.getBoard()[row][col] = piece;
+			model.getPosition().setPiece(row, col, piece);
 			result = true;
 			
 	}
@@ -83,9 +90,18 @@ public class BoardController {
 			System.out.println("Model.clearSquare: Column value of " + row + " outside range [0,7]. No action taken.");
 		else{
 			model.getBoard()[row][col] = null;
+			model.getPosition().setPiece(row, col, null);
 			result = true;
 			
 	}
 		return result;
 	}
+
+	/**
+	 * Returns the bitboard mirror of the board.
+	 * @return
+	 */
+	public Position getPosition(){
+		return model.getPosition();
+	}
 }
@@ -0,0 +1,242 @@
+package controller;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.TimeUnit;
+
+import model.PackedMove;
+import model.Position;
+import model.PositionSnapshot;
+import utils.Constants;
+
+/**
+ * Spreads one search over several engine processes. The coordinator starts
+ * its ClusterWorker processes with the same java and class path as this one
+ * and they connect back to it over TCP on the loopback interface. Each search
+ * deals the legal root moves out round robin, every worker searches its share
+ * to the full depth with its own transposition table, and the best of their
+ * answers is played.
+ *
+ * <p>
+ * The protocol is a few fixed layout messages over DataStreams. A search
+ * request is the SEARCH byte, the depth, the position (see
+ * PositionSnapshot.writeTo) and the root moves as a count followed by the
+ * packed moves. The answer is the best of those moves, its score and the
+ * nodes searched. QUIT, or closing the connection, ends the worker.
+ */
+public class ClusterCoordinator {
+
+	// Message types
+	final static byte SEARCH = 1;
+	final static byte QUIT = 2;
+
+	// How long the workers get to start and connect, and how often the
+	// coordinator checks that none has died while it waits
+	private final static int connectTimeoutMillis = 30000;
+	private final static int connectPollMillis = 100;
+
+	private final ServerSocket serverSocket;
+	private final Process[] processes;
+	private final Socket[] sockets;
+	private final DataInputStream[] inputs;
+	private final DataOutputStream[] outputs;
+
+	private final BitboardMoveGenerator generator = new BitboardMoveGenerator();
+	private final int[] rootMoves = new int[BitboardMoveGenerator.MAX_MOVES];
+
+	// Results of the last search
+	private double bestScore;
+	private long nodes;
+	private long searchTime;
+
+	/**
+	 * Constructor. Starts <code>numWorkers</code> worker processes and waits
+	 * for all of them to connect.
+	 *
+	 * @param numWorkers
+	 * @throws IOException
+	 *             if a worker can't be started or doesn't connect in time
+	 */
+	public ClusterCoordinator(int numWorkers) throws IOException {
+		serverSocket = new ServerSocket(0, numWorkers,
+				InetAddress.getLoopbackAddress());
+		serverSocket.setSoTimeout(connectPollMillis);
+		processes = new Process[numWorkers];
+		sockets = new Socket[numWorkers];
+		inputs = new DataInputStream[numWorkers];
+		outputs = new DataOutputStream[numWorkers];
+
+		try {
+			String java = System.getProperty("java.home") + File.separator
+					+ "bin" + File.separator + "java";
+			for (int i = 0; i < numWorkers; i++) {
+				ProcessBuilder builder = new ProcessBuilder(java, "-cp",
+						System.getProperty("java.class.path"),
+						"controller.ClusterWorker",
+						serverSocket.getInetAddress().getHostAddress(),
+						String.valueOf(serverSocket.getLocalPort()),
+						String.valueOf(Constants.getHashSizeMB()));
+				builder.inheritIO();
+				processes[i] = builder.start();
+			}
+
+			// Workers are told apart by the order they connect in, which
+			// needn't be the order they were started in
+			long deadline = System.currentTimeMillis() + connectTimeoutMillis;
+			for (int i = 0; i < numWorkers; i++) {
+				sockets[i] = accept(deadline);
+				sockets[i].setTcpNoDelay(true);
+				inputs[i] = new DataInputStream(new BufferedInputStream(
+						sockets[i].getInputStream()));
+				outputs[i] = new DataOutputStream(new BufferedOutputStream(
+						sockets[i].getOutputStream()));
+			}
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Waits for the next worker to connect, until <code>deadline</code>.
+	 * Every connectPollMillis it checks that no worker has exited, so a
+	 * worker that dies on startup fails the coordinator at once instead of
+	 * after the full timeout.
+	 *
+	 * @param deadline
+	 *            in System.currentTimeMillis time
+	 * @return
+	 * @throws IOException
+	 *             if a worker has exited or the deadline passes
+	 */
+	private Socket accept(long deadline) throws IOException {
+		while (true) {
+			try {
+				return serverSocket.accept();
+			} catch (SocketTimeoutException e) {
+				for (int i = 0; i < processes.length; i++)
+					if (!processes[i].isAlive())
+						throw new IOException("ClusterCoordinator: worker "
+								+ (i + 1) + " exited with code "
+								+ processes[i].exitValue() + " before connecting");
+				if (System.currentTimeMillis() >= deadline)
+					throw new IOException("ClusterCoordinator: workers didn't connect within "
+							+ connectTimeoutMillis + " ms");
+			}
+		}
+	}
+
+	public int getNumWorkers() {
+		return processes.length;
+	}
+
+	/**
+	 * Searches <code>snapshot</code> to <code>depth</code> on the workers
+	 * and returns the best move, packed, or PackedMove.NO_MOVE if there are
+	 * no legal moves. All requests are sent before any answer is read, so the
+	 * workers search at the same time.
+	 *
+	 * @param snapshot
+	 * @param depth
+	 * @return
+	 * @throws IOException
+	 *             if a worker can't be reached
+	 */
+	public int search(PositionSnapshot snapshot, int depth) throws IOException {
+		long start = System.nanoTime();
+		Position position = snapshot.toPosition();
+		int numMoves = generator.generateLegalMoves(position, rootMoves);
+		int numWorkers = Math.min(getNumWorkers(), numMoves);
+
+		for (int w = 0; w < numWorkers; w++) {
+			DataOutputStream out = outputs[w];
+			out.writeByte(SEARCH);
+			out.writeInt(depth);
+			snapshot.writeTo(out);
+			out.writeInt((numMoves - w + numWorkers - 1) / numWorkers);
+			for (int i = w; i < numMoves; i += numWorkers)
+				out.writeInt(rootMoves[i]);
+			out.flush();
+		}
+
+		// Ties go to the worker with the earlier moves, which the move
+		// generator put first
+		int bestMove = PackedMove.NO_MOVE;
+		bestScore = -Constants.getCheckMateScore();
+		nodes = 0;
+		for (int w = 0; w < numWorkers; w++) {
+			DataInputStream in = inputs[w];
+			int move = in.readInt();
+			double score = in.readDouble();
+			nodes += in.readLong();
+			if (bestMove == PackedMove.NO_MOVE || score > bestScore) {
+				bestMove = move;
+				bestScore = score;
+			}
+		}
+		searchTime = System.nanoTime() - start;
+		return bestMove;
+	}
+
+	public double getBestScore() {
+		return bestScore;
+	}
+
+	/**
+	 * Returns a one line summary of the last search, for logging
+	 *
+	 * @return
+	 */
+	public String getStats() {
+		return "Cluster: " + getNumWorkers() + " workers, " + nodes
+				+ " nodes, " + String.format("%.1f", searchTime / 1e6)
+				+ " ms, best score " + bestScore;
+	}
+
+	/**
+	 * Tells the workers to quit and closes their connections. A worker that
+	 * hasn't exited a second later is killed.
+	 */
+	public void close() {
+		for (int i = 0; i < outputs.length; i++) {
+			if (outputs[i] != null) {
+				try {
+					outputs[i].writeByte(QUIT);
+					outputs[i].flush();
+				} catch (IOException e) {
+					// The worker is gone already
+				}
+			}
+		}
+		for (int i = 0; i < sockets.length; i++) {
+			if (sockets[i] != null) {
+				try {
+					sockets[i].close();
+				} catch (IOException e) {
+				}
+			}
+		}
+		try {
+			serverSocket.close();
+		} catch (IOException e) {
+		}
+		for (int i = 0; i < processes.length; i++) {
+			if (processes[i] != null) {
+				try {
+					processes[i].waitFor(1, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				processes[i].destroy();
+			}
+		}
+	}
+}
@@ -0,0 +1,94 @@
+package controller;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+
+import model.PositionSnapshot;
+import utils.Constants;
+import utils.Constants.LogLevel;
+
+/**
+ * Engine process that searches the root moves a ClusterCoordinator sends it
+ * and answers with the best of them. ClusterCoordinator starts it as
+ *
+ * <pre>
+ * java controller.ClusterWorker host port [hash megabytes]
+ * </pre>
+ *
+ * and it connects back to that address. It runs until it gets QUIT or the
+ * connection closes.
+ */
+public class ClusterWorker {
+
+	public static void main(String[] args) {
+		if (args.length < 2) {
+			System.out.println("ClusterWorker: usage: ClusterWorker host port [hash megabytes]");
+			return;
+		}
+
+		// Every worker shares the coordinator's working directory, so only
+		// errors go to the log
+		Constants.setLogLevel(LogLevel.ERROR);
+		if (args.length > 2)
+			Constants.setHashSizeMB(Integer.parseInt(args[2]));
+
+		Socket socket = null;
+		try {
+			socket = new Socket(args[0], Integer.parseInt(args[1]));
+			socket.setTcpNoDelay(true);
+			serve(new DataInputStream(new BufferedInputStream(
+					socket.getInputStream())), new DataOutputStream(
+					new BufferedOutputStream(socket.getOutputStream())));
+		} catch (EOFException e) {
+			// The coordinator went away
+		} catch (IOException e) {
+			System.out.println("ClusterWorker.main: " + e.getMessage());
+		} finally {
+			if (socket != null) {
+				try {
+					socket.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * Answers search requests until QUIT. The AI, and with it the
+	 * transposition table, is kept from one request to the next.
+	 *
+	 * @param in
+	 * @param out
+	 * @throws IOException
+	 */
+	private static void serve(DataInputStream in, DataOutputStream out)
+			throws IOException {
+		AI ai = new AI(null);
+		int[] moves = new int[BitboardMoveGenerator.MAX_MOVES];
+		byte type;
+		while ((type = in.readByte()) != ClusterCoordinator.QUIT) {
+			if (type != ClusterCoordinator.SEARCH)
+				throw new IOException("unknown message type " + type);
+
+			Constants.setDepth(in.readInt());
+			PositionSnapshot snapshot = PositionSnapshot.readFrom(in);
+			int numMoves = in.readInt();
+			if (numMoves < 0 || numMoves > moves.length)
+				throw new IOException("bad number of root moves " + numMoves);
+			for (int i = 0; i < numMoves; i++)
+				moves[i] = in.readInt();
+
+			ai.setRootMoves(moves, numMoves);
+			int move = ai.move(snapshot);
+			out.writeInt(move);
+			out.writeDouble(ai.getBestScore());
+			out.writeLong(ai.searchNodes);
+			out.flush();
+		}
+	}
+}
@@ -20,8 +20,12 @@ import model.Move;
 import model.Node;
 import model.Piece;
 import model.PieceArray;
+import model.Position;
 import utils.Constants;
+import utils.Constants.AttackMode;
+import utils.Constants.GameStatus;
 import utils.Constants.LogLevel;
+import utils.Constants.MobilityMode;
 import utils.Log;
 import utils.Utils;
 import view.View;
@@ -48,15 +52,8 @@ public class Controller {
 
 		controller = new Controller(args);
 
-		// Peformance testing below to ensure move generation correctness
-		// for (int depth = 0; depth < 9; depth++) {
-		// long startTime = System.currentTimeMillis();
-		// int nodes = controller.AI.perft(depth,true);
-		// long endTime = System.currentTimeMillis();
-		//
-		// System.out.println("Peft " + (depth + 1) + ": "
-		// +nodes + ": " + (endTime - startTime) / 1000.0 + " seconds");
-		// }
+		// Move generation correctness and speed are tested headless, see
+		// controller.Perft
 	}
 
 	/**
@@ -73,9 +70,9 @@ public class Controller {
 		
 		
 		model = new Model();
-		ruleEngine = new RuleEngine(this);
 		boardController = new BoardController(model);
-		moveGenerator = new MoveGenerator(boardController, ruleEngine, this);
+		ruleEngine = new RuleEngine(model, boardController);
+		moveGenerator = new MoveGenerator(boardController, ruleEngine);
 		masterListener = new MasterListener(this);
 		view = new View(this, boardController, masterListener,
 				model.getCapturedPieces());
@@ -152,6 +149,89 @@ public class Controller {
 										+ gameMode + " used.");
 					Constants.setGameMode(gameMode);
 				}
+				else if (arg.equals("-hash")) {
+					try {
+						int megabytes = Integer.parseInt(args[i + 1]);
+						if (megabytes > 0)
+							Constants.setHashSizeMB(megabytes);
+						else
+							System.out
+									.println("ERROR: Command line argument for hash '"
+											+ args[i + 1]
+											+ "' must be a positive number of megabytes. Default value of "
+											+ Constants.getDefaultHashSizeMB() + " used.");
+					} catch (NumberFormatException numberFormatException) {
+						System.out
+								.println("ERROR: Command line argument for hash '"
+										+ args[i + 1]
+										+ "' invalid. Default value of "
+										+ Constants.getDefaultHashSizeMB() + " used.");
+					}
+				}
+				else if (arg.equals("-threads")) {
+					try {
+						int threads = Integer.parseInt(args[i + 1]);
+						if (threads > 0)
+							Constants.setSearchThreads(threads);
+						else
+							System.out
+									.println("ERROR: Command line argument for threads '"
+											+ args[i + 1]
+											+ "' must be a positive number. Default value of "
+											+ Constants.getDefaultSearchThreads() + " used.");
+					} catch (NumberFormatException numberFormatException) {
+						System.out
+								.println("ERROR: Command line argument for threads '"
+										+ args[i + 1]
+										+ "' invalid. Default value of "
+										+ Constants.getDefaultSearchThreads() + " used.");
+					}
+				}
+				else if (arg.equals("-workers")) {
+					try {
+						int workers = Integer.parseInt(args[i + 1]);
+						if (workers >= 0)
+							Constants.setClusterWorkers(workers);
+						else
+							System.out
+									.println("ERROR: Command line argument for workers '"
+											+ args[i + 1]
+											+ "' must not be negative. Default value of "
+											+ Constants.getDefaultClusterWorkers() + " used.");
+					} catch (NumberFormatException numberFormatException) {
+						System.out
+								.println("ERROR: Command line argument for workers '"
+										+ args[i + 1]
+										+ "' invalid. Default value of "
+										+ Constants.getDefaultClusterWorkers() + " used.");
+					}
+				}
+				else if (arg.equals("-mobility")) {
+					String mode = args[i + 1].toLowerCase();
+					if (mode.equals("pseudo_legal"))
+						Constants.setMobilityMode(MobilityMode.PSEUDO_LEGAL);
+					else if (mode.equals("legal"))
+						Constants.setMobilityMode(MobilityMode.LEGAL);
+					else
+						System.out
+								.println("ERROR: Command line argument for mobility '"
+										+ mode
+										+ "' doesn't match expected values of pseudo_legal or legal. Default value of "
+										+ Constants.getMobilityMode() + " used.");
+				}
+				else if (arg.equals("-attacks")) {
+					String mode = args[i + 1].toLowerCase();
+					if (mode.equals("on_demand"))
+						Constants.setAttackMode(AttackMode.ON_DEMAND);
+					else if (mode.equals("incremental"))
+						Constants.setAttackMode(AttackMode.INCREMENTAL);
+					else
+						System.out
+								.println("ERROR: Command line argument for attacks '"
+										+ mode
+										+ "' doesn't match expected values of on_demand or incremental. Default value of "
+										+ Constants.getAttackMode() + " used.");
+				}
 				else if (arg.equals("-log")){
 					String level =args[i + 1].toLowerCase();
 					
@@ -167,7 +247,7 @@ public class Controller {
 					
 				}
 				else{
-					System.out.println("ERROR: Command line argument \'" + arg + "\' doesn't match supported arguments mode, depth, logLevel, or debug. No action taken.");
+					System.out.println("ERROR: Command line argument \'" + arg + "\' doesn't match supported arguments mode, depth, hash, threads, workers, mobility, attacks, logLevel, or debug. No action taken.");
 				}
 				
 
@@ -198,18 +278,17 @@ public class Controller {
 	 * legally move to.
 	 */
 	private void highlightLegalMoves() {
-		// TODO Auto-generated method stub
 		MouseEvent e = masterListener.getPressEvent();
 
 		int row = computeRowFromMouseEvent(e);
 		int col = computeColFromMouseEvent(e);
 
-		ArrayList<Move> legalMoves = new ArrayList<Move>();
-		moveGenerator.findMoves(legalMoves, row, col);
-
-		for (Move move : legalMoves)
-			view.highlightSquareWithDot(move.getEndRow(), move.getEndCol());
-
+		long destinations = moveGenerator.getLegalDestinations(row, col);
+		while (destinations != 0) {
+			int sq = Long.numberOfTrailingZeros(destinations);
+			destinations &= destinations - 1;
+			view.highlightSquareWithDot(Position.rowOf(sq), Position.colOf(sq));
+		}
 	}
 
 	/**
@@ -255,7 +334,7 @@ public class Controller {
 			view.highlightPreviousMove(model.getMoveList());
 
 		if (isAIturn() && !gameOver) {
-			Runnable aiRunnable = new AI_Thread(this, AI, isWhiteTurn());
+			Runnable aiRunnable = new AI_Thread(this, AI);
 			Thread aiThread = new Thread(aiRunnable);
 			aiThread.start();
 
@@ -281,22 +360,29 @@ public class Controller {
 	 */
 	public void processMoveAttempt(Move move) {
 		boolean moveFound = false;
-		if (RuleEngine.validateMove(move, boardController, true)) {
+		if (moveGenerator.isLegalMove(move)) {
 			Node root = gameTreeController.getRoot();
-			if (root.getChildren().size() != 0)
-				for (Node node : root.getChildren())
-					if (node.getMove().equals(move)) {
-						moveFound = true;
-						processMove(node);
-					}
+			for (Node node : root.getChildren())
+				if (node.getMove().equals(move)) {
+					moveFound = true;
+					processMove(node);
+					break;
+				}
+			// The search works on packed moves and no longer builds a tree
+			// of nodes, so an empty root is the normal case
 			if (!moveFound) {
 				processMove(new Node(move));
-				System.out
-						.println("Controller.processMoveAttempt: Error: Chosen move not found.");
+				if (root.getChildren().size() != 0)
+					System.out
+							.println("Controller.processMoveAttempt: Error: Chosen move not found.");
 			}
-		} else
+		} else {
+			// Only a rejected move goes through the rule engine, which prints
+			// why it is not allowed
+			ruleEngine.validateMove(move, boardController, true);
 			System.out
 					.println("Controller.handleMouseRelease: Invalid move. Board not modified.");
+		}
 	}
 
 	/**
@@ -307,6 +393,17 @@ public class Controller {
 	public void processMove(Node node) {
 		Move move = node.getMove();
 		model.getMoveList().add(move);
+
+		// Pawn moves and captures reset the halfmove clock. Check before the
+		// board changes, since a promotion changes the piece type.
+		boolean isPawnMoveOrCapture = move.getPiece().getType() == Constants
+				.getPawnChar()
+				|| boardController.getPieceByCoords(move.getEndRow(),
+						move.getEndCol()) != null;
+
+		// Remember the position before the move for repetition detection
+		boardController.getPosition().recordGameMove();
+
 		// Check for special cases, such as pawn promotes, en
 		// passant captures
 		handleSpecialCases(move);
@@ -334,6 +431,18 @@ public class Controller {
 
 		boardController.clearSquare(move.getStartRow(), move.getStartCol());
 
+		// Piece placement was hashed as the board was written; update the
+		// side to move, castling rights and en passant parts of the hash
+		Position position = boardController.getPosition();
+		position.applyMoveState(
+				Position.square(move.getStartRow(), move.getStartCol()),
+				Position.square(move.getEndRow(), move.getEndCol()),
+				RuleEngine.isDoublePawnPush(move), isPawnMoveOrCapture);
+		if (Constants.getDebugFlag() && !position.verifyKey())
+			log.error("Controller.processMove: Position hash out of sync after "
+					+ move.algebraicNotationPrint());
+		model.publishSnapshot();
+
 		gameTreeController.setRoot(node);
 		node.setParent(null);
 	}
@@ -378,22 +487,14 @@ public class Controller {
 	}
 
 	/**
-	 * Returns true if white or black is in checkmate or stalemate.
+	 * Returns true if the game is over: checkmate, stalemate or a draw. The
+	 * status is computed once per position and shared with the checkmate and
+	 * stalemate tests.
 	 * 
 	 * @return
 	 */
 	public boolean isGameOver() {
-
-		boolean result = false;
-
-		boolean isWhite = true;
-
-		if (isBlackCheckmated() || isWhiteCheckmated()
-				|| moveGenerator.isStalemated(isWhite)
-				|| moveGenerator.isStalemated(!isWhite))
-			result = true;
-
-		return result;
+		return moveGenerator.getGameStatus() != GameStatus.ONGOING;
 	}
 
 	/**
@@ -402,37 +503,7 @@ public class Controller {
 	 * @return
 	 */
 	public boolean isWhiteCheckmated() {
-		PieceArray white = model.getWhitePieces();
-		Piece king = null;
-		boolean inCheck = false;
-		boolean result = false;
-
-		king = white.getKing();
-
-		if (king == null)
-			result = true;
-		else {
-			boolean black = false;
-			if (RuleEngine
-					.isAttackedSquare(king.getRow(), king.getCol(), black))
-				inCheck = true;
-
-			ArrayList<Move> legalMoves = new ArrayList<Move>();
-
-			if (inCheck) {
-				for (int row = 0; row < 8; row++) {
-					for (int col = 0; col < 8; col++)
-						if (boardController.getPieceByCoords(row, col) != null
-								&& boardController.getPieceByCoords(row, col)
-										.isWhite()) {
-							moveGenerator.findMoves(legalMoves, row, col);
-
-						}
-				}
-			}
-			result = inCheck && (legalMoves.isEmpty());
-		}
-		return result;
+		return isCheckmated(Position.WHITE);
 	}
 
 	/**
@@ -441,37 +512,19 @@ public class Controller {
 	 * @return
 	 */
 	public boolean isBlackCheckmated() {
-		PieceArray black = model.getBlackPieces();
-		Piece king = null;
-		boolean inCheck = false;
-		boolean result = false;
-
-		king = black.getKing();
-
-		if (king == null)
-			result = true;
-		else {
-			boolean white = true;
-			if (RuleEngine
-					.isAttackedSquare(king.getRow(), king.getCol(), white))
-				inCheck = true;
-
-			ArrayList<Move> legalMoves = new ArrayList<Move>();
-			if (inCheck) {
-				for (int row = 0; row < 8; row++) {
-					for (int col = 0; col < 8; col++)
-						if (boardController.getPieceByCoords(row, col) != null
-								&& !boardController.getPieceByCoords(row, col)
-										.isWhite()) {
-							moveGenerator.findMoves(legalMoves, row, col);
-
-						}
-				}
-			}
+		return isCheckmated(Position.BLACK);
+	}
 
-			result = inCheck && (legalMoves.isEmpty());
-		}
-		return result;
+	/**
+	 * Returns true if side <code>color</code> is checkmated, or has lost its
+	 * king. Only the side to move can be checkmated.
+	 */
+	private boolean isCheckmated(int color) {
+		Position position = boardController.getPosition();
+		if (position.getKingSquare(color) == Position.NO_SQUARE)
+			return true;
+		return color == position.getSideToMove()
+				&& moveGenerator.getGameStatus() == GameStatus.CHECKMATE;
 	}
 
 	/**
@@ -493,9 +546,9 @@ public class Controller {
 	 * @param move
 	 */
 	private void handleSpecialCases(Move move) {
-		handleEnPassantCaptures(move);
+		ruleEngine.handleEnPassantCaptures(move);
 		handlePawnPromote(move);
-		handleCastling(move);
+		ruleEngine.handleCastling(move);
 	}
 
 	/**
@@ -514,33 +567,6 @@ public class Controller {
 			System.out.println(move.toString());
 	}
 
-	/**
-	 * If parameter move was a kingside or queenside castle, this method moves
-	 * the rook to the proper square
-	 * 
-	 * @param move
-	 */
-	public void handleCastling(Move move) {
-		if (move.getPiece().getType() == Constants.getKingChar()
-				&& RuleEngine.calculateDeltaColUnsigned(move) == 2) {
-			if (RuleEngine.calculateDeltaColSigned(move) == 2) {
-				Piece rook = boardController.getPieceByCoords(
-						move.getStartRow(), 7);
-				boardController.setPieceByCoords(move.getStartRow(), 5, rook);
-				rook.setCol(5);
-				boardController.clearSquare(move.getStartRow(), 7);
-			} else {
-				Piece rook = boardController.getPieceByCoords(
-						move.getStartRow(), 0);
-				boardController.setPieceByCoords(move.getStartRow(), 3, rook);
-				rook.setCol(3);
-				boardController.clearSquare(move.getStartRow(), 0);
-			}
-
-		}
-
-	}
-
 	/**
 	 * If parameter move was a pawn being moved to the first or last rank, this
 	 * method prompts the user for a piece type and turns the pawn into the type
@@ -612,84 +638,7 @@ public class Controller {
 	private void updatePieceLists(Move move) {
 		if (boardController
 				.getPieceByCoords(move.getEndRow(), move.getEndCol()) != null)
-			removePieceFromList(move);
-
-	}
-
-	/**
-	 * If execution gets to this method, then Move parameter move is valid.
-	 * Check if it was an en passant capture. If it is a valid en passant
-	 * capture, then we can clear the square that the previous move ended on,
-	 * because it had to have been where the captured pawn ended up.
-	 * 
-	 * Returns a reference to the pawn that got captured, if one exists
-	 * 
-	 * @param move
-	 */
-	public Piece handleEnPassantCaptures(Move move) {
-		Piece pawnCaptured = null;
-
-		if (move.getPiece().getType() == Constants.getPawnChar()
-				&& move.getStartCol() != move.getEndCol()
-				&& boardController.getPieceByCoords(move.getEndRow(),
-						move.getEndCol()) == null) {
-			int size = model.getMoveList().size();
-
-			// This method only gets called after the passant move has been
-			// added to the move list,
-			// so we need to look 2 moves back to fine the move where the enemy
-			// pawn moved 2 squares.
-			Move previousMove = null;
-			// if (AI.isNullMoveBranch())
-			// previousMove = model.getMoveList().get(size - 3);
-			// else
-			previousMove = model.getMoveList().get(size - 2);
-
-			// if (null ==
-			// boardController.getPieceByCoords(previousMove.getEndRow(),
-			// previousMove.getEndCol()))
-			// System.out.println("Error");
-			// System.out.println(model.getMoveList().get(size-2).coloredAlgebraicNotationPrint());
-			// System.out.println(move.algebraicNotationPrint());
-			removePieceFromList(previousMove);
-
-			pawnCaptured = previousMove.getPiece();
-
-			boardController.clearSquare(previousMove.getEndRow(),
-					previousMove.getEndCol());
-		}
-		return pawnCaptured;
-
-	}
-
-	/**
-	 * Removes the piece on the destination square of Move parameter move from
-	 * it's black/white piece list in the model.
-	 * 
-	 * Note: This method gets called eventually when checking to see how many
-	 * moves a player has form a given position. If the player can check their
-	 * opponent, then capturing the enemy king is a legal move from that
-	 * position (even though it is not that player's turn). The end result is
-	 * that the king might get "captured" by this method, but it's not because
-	 * it's possible, the engine is just seeing if that is a legal move from the
-	 * position (assuming it were able to move).
-	 * 
-	 * @param move
-	 */
-	public void removePieceFromList(Move move) {
-
-		Piece piece = boardController.getPieceByCoords(move.getEndRow(),
-				move.getEndCol());
-
-		if (piece == null)
-			log.error("Controller.removePieceFromList: Removing null piece?");
-
-		if (piece.isWhite()) {
-			model.getWhitePieces().remove(piece);
-		} else
-			model.getBlackPieces().remove(piece);
-
-		model.getCapturedPieces().add(piece);
+			ruleEngine.removePieceFromList(move);
 
 	}
 
@@ -969,28 +918,14 @@ public class Controller {
 	}
 
 	/**
-	 * Returns true if the same position has occurred 3 times in a row.
+	 * Returns true if the current position has occurred three times in the
+	 * game. Positions are compared by hash, going back only to the last
+	 * capture or pawn move.
 	 * 
 	 * @return
 	 */
 	public boolean isDrawByThreefoldRepitition() {
-		boolean result = true;
-
-		if (model.getMoveList().size() < 11)
-			result = false;
-		else {
-			int size = model.getMoveList().size();
-			ArrayList<Move> moveList = model.getMoveList();
-			for (int i = 0; i < 5; i++) {
-				if (!moveList.get(size - 1 - i).equals(
-						moveList.get(size - 4 - 1 - i)))
-					result = false;
-
-			}
-
-		}
-
-		return result;
+		return boardController.getPosition().countRepetitions() >= 2;
 	}
 
 	/******************************************************************/
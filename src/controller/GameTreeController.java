@@ -190,7 +190,8 @@ public class GameTreeController {
 		
 		if (!isUpdated){
 			
-			System.out.println("GameTreeController.setRoot: Could not find move " + rootIn.getMove().algebraicNotationPrint() + " in children of current root. Replaced anyway. Error?");
+			if (root.getChildren().size() != 0)
+				System.out.println("GameTreeController.setRoot: Could not find move " + rootIn.getMove().algebraicNotationPrint() + " in children of current root. Replaced anyway. Error?");
 			
 			this.root=rootIn;
 		
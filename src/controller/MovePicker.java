@@ -0,0 +1,276 @@
+package controller;
+
+import model.PackedMove;
+import model.Position;
+
+/**
+ * Hands out the moves of one search node one at a time, in stages, and only
+ * generates a stage when the previous one has run dry:
+ *
+ * <li>1. The hash move (the move from the previous iteration's PV) <li>2.
+ * Captures that win material or trade evenly, and promotions, by MVV-LVA <li>
+ * 3. Killer moves <li>4. The other quiet moves <li>5. Captures that are likely
+ * to lose material
+ *
+ * <p>
+ * When one of the first moves causes a beta cutoff, the quiet moves are never
+ * generated at all. The search keeps one picker per ply, so nothing is
+ * allocated while searching.
+ */
+public class MovePicker {
+
+	// Stages, in the order they are visited
+	private final static int HASH_MOVE = 0;
+	private final static int GENERATE_CAPTURES = 1;
+	private final static int GOOD_CAPTURES = 2;
+	private final static int FIRST_KILLER = 3;
+	private final static int SECOND_KILLER = 4;
+	private final static int GENERATE_QUIETS = 5;
+	private final static int QUIET_MOVES = 6;
+	private final static int BAD_CAPTURES = 7;
+	private final static int DONE = 8;
+
+	// Ordering bonus that puts promotions in front of every plain capture
+	private final static int promotionScore = 100000;
+
+	private final BitboardMoveGenerator generator;
+	private final int[] moves = new int[BitboardMoveGenerator.MAX_MOVES];
+	private final int[] scores = new int[BitboardMoveGenerator.MAX_MOVES];
+	private final int[] badCaptures = new int[BitboardMoveGenerator.MAX_MOVES];
+	private final int[] scratch = new int[BitboardMoveGenerator.MAX_MOVES];
+
+	private Position position;
+	private int stage;
+	private int hashMove;
+	private int firstKiller;
+	private int secondKiller;
+	private int index;
+	private int numMoves;
+	private int numBadCaptures;
+	private int badCaptureIndex;
+
+	// Moves generated at this node, including the ones generated to check
+	// that the hash and killer moves are legal here
+	private int numGenerated;
+
+	/**
+	 * Constructor
+	 *
+	 * @param generatorIn
+	 */
+	public MovePicker(BitboardMoveGenerator generatorIn) {
+		this.generator = generatorIn;
+	}
+
+	/**
+	 * Starts handing out the moves of the side to move in
+	 * <code>positionIn</code>. The hash and killer moves may be
+	 * PackedMove.NO_MOVE, and are skipped if they are not legal here.
+	 *
+	 * @param positionIn
+	 * @param hashMoveIn
+	 * @param firstKillerIn
+	 * @param secondKillerIn
+	 */
+	public void init(Position positionIn, int hashMoveIn, int firstKillerIn,
+			int secondKillerIn) {
+		position = positionIn;
+		stage = HASH_MOVE;
+		numGenerated = 0;
+		numMoves = 0;
+		index = 0;
+		numBadCaptures = 0;
+		badCaptureIndex = 0;
+
+		hashMove = isLegal(hashMoveIn) ? hashMoveIn : PackedMove.NO_MOVE;
+
+		// Killers are quiet moves of a sibling node, and are only worth
+		// trying early if they aren't the hash move
+		firstKiller = firstKillerIn != hashMove && isQuiet(firstKillerIn)
+				&& isLegal(firstKillerIn) ? firstKillerIn : PackedMove.NO_MOVE;
+		secondKiller = secondKillerIn != hashMove
+				&& secondKillerIn != firstKiller && isQuiet(secondKillerIn)
+				&& isLegal(secondKillerIn) ? secondKillerIn
+				: PackedMove.NO_MOVE;
+	}
+
+	/**
+	 * Returns the next move to search, or PackedMove.NO_MOVE when every move
+	 * has been handed out.
+	 *
+	 * @return
+	 */
+	public int next() {
+		while (true) {
+			switch (stage) {
+			case HASH_MOVE:
+				stage = GENERATE_CAPTURES;
+				if (hashMove != PackedMove.NO_MOVE)
+					return hashMove;
+				break;
+
+			case GENERATE_CAPTURES:
+				numMoves = generator.generateCaptures(position, moves);
+				numGenerated += numMoves;
+				scoreCaptures();
+				index = 0;
+				stage = GOOD_CAPTURES;
+				break;
+
+			case GOOD_CAPTURES:
+				while (index < numMoves) {
+					int move = pickBest();
+					if (move == hashMove)
+						continue;
+					if (isLosingCapture(move))
+						badCaptures[numBadCaptures++] = move;
+					else
+						return move;
+				}
+				stage = FIRST_KILLER;
+				break;
+
+			case FIRST_KILLER:
+				stage = SECOND_KILLER;
+				if (firstKiller != PackedMove.NO_MOVE)
+					return firstKiller;
+				break;
+
+			case SECOND_KILLER:
+				stage = GENERATE_QUIETS;
+				if (secondKiller != PackedMove.NO_MOVE)
+					return secondKiller;
+				break;
+
+			case GENERATE_QUIETS:
+				numMoves = generator.generateQuietMoves(position, moves);
+				numGenerated += numMoves;
+				index = 0;
+				stage = QUIET_MOVES;
+				break;
+
+			case QUIET_MOVES:
+				while (index < numMoves) {
+					int move = moves[index++];
+					if (move != hashMove && move != firstKiller
+							&& move != secondKiller)
+						return move;
+				}
+				stage = BAD_CAPTURES;
+				break;
+
+			case BAD_CAPTURES:
+				if (badCaptureIndex < numBadCaptures)
+					return badCaptures[badCaptureIndex++];
+				stage = DONE;
+				break;
+
+			default:
+				return PackedMove.NO_MOVE;
+			}
+		}
+	}
+
+	/**
+	 * Returns true if the hash move passed to init was legal here and will be
+	 * (or was) handed out first.
+	 *
+	 * @return
+	 */
+	public boolean hasHashMove() {
+		return hashMove != PackedMove.NO_MOVE;
+	}
+
+	/**
+	 * Returns the number of moves generated at this node so far
+	 *
+	 * @return
+	 */
+	public int getNumGenerated() {
+		return numGenerated;
+	}
+
+	/**
+	 * Gives each capture an MVV-LVA ordering score, highest first: the most
+	 * valuable victim, then the least valuable attacker. Promotions go before
+	 * all of them, queen promotions first.
+	 */
+	private void scoreCaptures() {
+		for (int i = 0; i < numMoves; i++) {
+			int move = moves[i];
+			int score = 0;
+			if (PackedMove.isCapture(move))
+				score = 10
+						* AI.pieceWeights[Position.typeOf(PackedMove
+								.getCaptured(move))]
+						- AI.pieceWeights[Position.typeOf(PackedMove
+								.getPiece(move))];
+			if (PackedMove.isPromotion(move))
+				score += promotionScore
+						+ AI.pieceWeights[PackedMove.getPromotion(move)];
+			scores[i] = score;
+		}
+	}
+
+	/**
+	 * Swaps the highest scoring remaining move into <code>index</code> and
+	 * returns it. Sorting one move at a time means nothing is sorted past a
+	 * beta cutoff.
+	 */
+	private int pickBest() {
+		int best = index;
+		for (int i = index + 1; i < numMoves; i++)
+			if (scores[i] > scores[best])
+				best = i;
+
+		int move = moves[best];
+		moves[best] = moves[index];
+		moves[index] = move;
+		int score = scores[best];
+		scores[best] = scores[index];
+		scores[index] = score;
+		index++;
+		return move;
+	}
+
+	/**
+	 * Returns true if <code>move</code> takes a piece worth less than the
+	 * capturing piece on a square the opponent defends. Without a full
+	 * exchange evaluation this is the cheap signal that the capture most
+	 * likely loses material.
+	 */
+	private boolean isLosingCapture(int move) {
+		if (PackedMove.isPromotion(move)
+				|| PackedMove.getFlags(move) == PackedMove.FLAG_EN_PASSANT)
+			return false;
+		int attacker = AI.pieceWeights[Position.typeOf(PackedMove
+				.getPiece(move))];
+		int victim = AI.pieceWeights[Position.typeOf(PackedMove
+				.getCaptured(move))];
+		int defender = Position.colorOf(PackedMove.getCaptured(move));
+		return victim < attacker
+				&& position.isSquareAttacked(PackedMove.getTo(move), defender);
+	}
+
+	private boolean isQuiet(int move) {
+		return move != PackedMove.NO_MOVE && !PackedMove.isCapture(move)
+				&& !PackedMove.isPromotion(move);
+	}
+
+	private boolean isLegal(int move) {
+		if (move == PackedMove.NO_MOVE)
+			return false;
+		int from = PackedMove.getFrom(move);
+		if (position.pieceAt(from) != PackedMove.getPiece(move))
+			return false;
+
+		// Only the moves of the piece on the from square are needed
+		int numScratch = generator.generateLegalMoves(position,
+				position.getSideToMove(), 1L << from, scratch);
+		numGenerated += numScratch;
+		for (int i = 0; i < numScratch; i++)
+			if (scratch[i] == move)
+				return true;
+		return false;
+	}
+}
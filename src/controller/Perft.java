@@ -0,0 +1,374 @@
+package controller;
+
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import model.PackedMove;
+import model.Position;
+import utils.Constants;
+
+/**
+ * Headless perft driver: counts the leaf nodes of the legal move tree to a
+ * fixed depth, which checks the move generator against published counts and
+ * measures its speed. Run without the GUI:
+ *
+ * <pre>
+ * java controller.Perft &lt;depth&gt; [fen]
+ * java controller.Perft suite
+ * java controller.Perft parallel &lt;depth&gt; [threads] [fen]
+ * java controller.Perft hash &lt;megabytes&gt; &lt;depth&gt; [fen]
+ * </pre>
+ *
+ * The first form prints the node count below every root move ("divide"),
+ * the total, the elapsed time and nodes per second, for the start position if
+ * no FEN is given. The second runs a suite of reference positions and exits
+ * with status 1 if any count is off. The third counts serially and then on a
+ * ForkJoinPool with 1, 2, 4, ... threads up to <code>threads</code> (all
+ * cores by default), checks every parallel count against the serial one and
+ * prints the speedup of each. The last is divide with a PerftTable of the
+ * given size, which pays off at depths where transpositions are common, and
+ * prints its hit rate and memory use.
+ *
+ * <p>
+ * The last ply is always bulk counted: the number of legal moves is the leaf
+ * count, without making them.
+ */
+public class Perft {
+
+	// Reference positions as { FEN, depth, nodes }. Counts are the published
+	// ones from the chess programming community, depths are chosen so the
+	// whole suite takes seconds.
+	private final static String[][] suite = {
+			{ Constants.getStartFen(), "5", "4865609" },
+			{ "r3k2r/p1ppqpb1/bn2pnp1/3PN3/1p2P3/2N2Q1p/PPPBBPPP/R3K2R w KQkq - 0 1",
+					"4", "4085603" },
+			{ "8/2p5/3p4/KP5r/1R3p1k/8/4P1P1/8 w - - 0 1", "5", "674624" },
+			{ "r3k2r/Pppp1ppp/1b3nbN/nP6/BBP1P3/q4N2/Pp1P2PP/R2Q1RK1 w kq - 0 1",
+					"4", "422333" },
+			{ "r2q1rk1/pP1p2pp/Q4n2/bbp1p3/Np6/1B3NBn/pPPP1PPP/R3K2R b KQ - 0 1",
+					"4", "422333" },
+			{ "rnbq1k1r/pp1Pbppp/2p5/8/2B5/8/PPP1NnPP/RNBQK2R w KQ - 1 8",
+					"4", "2103487" },
+			{ "r4rk1/1pp1qppp/p1np1n2/2b1p1B1/2B1P1b1/P1NP1N2/1PP1QPPP/R4RK1 w - - 0 10",
+					"4", "3894594" } };
+
+	// Plies below the root that parallelPerft splits into separate tasks.
+	// Splitting below the root moves as well evens out the uneven subtree
+	// sizes, and leaves enough tasks for 32 threads.
+	private final static int splitPlies = 2;
+
+	// Each worker thread of the pool reuses one Perft and its move buffers
+	private final static ThreadLocal<Perft> workerPerft = new ThreadLocal<Perft>() {
+		@Override
+		protected Perft initialValue() {
+			return new Perft();
+		}
+	};
+
+	private final BitboardMoveGenerator generator = new BitboardMoveGenerator();
+
+	// One move list per ply, so counting never allocates
+	private final int[][] moveBuffers = new int[Position.MAX_PLY][BitboardMoveGenerator.MAX_MOVES];
+
+	// Subtree counts by hash and depth, or null to count every subtree
+	private final PerftTable table;
+
+	/**
+	 * Constructor for counting without a table
+	 */
+	public Perft() {
+		this(null);
+	}
+
+	/**
+	 * Constructor. Subtrees of two or more plies are looked up in and stored
+	 * to <code>tableIn</code>, which may be null.
+	 *
+	 * @param tableIn
+	 */
+	public Perft(PerftTable tableIn) {
+		this.table = tableIn;
+	}
+
+	public static void main(String[] args) {
+		if (args.length == 0) {
+			System.out.println("Usage: java controller.Perft <depth> [fen]");
+			System.out.println("       java controller.Perft suite");
+			System.out.println("       java controller.Perft parallel <depth> [threads] [fen]");
+			System.out.println("       java controller.Perft hash <megabytes> <depth> [fen]");
+			return;
+		}
+
+		Perft perft = new Perft();
+		if (args[0].equals("suite")) {
+			if (!perft.runSuite())
+				System.exit(1);
+			return;
+		}
+
+		if (args[0].equals("parallel")) {
+			int depth = Integer.parseInt(args[1]);
+			int threads = Runtime.getRuntime().availableProcessors();
+			int fenStart = 2;
+			if (args.length > 2 && args[2].matches("\\d+")) {
+				threads = Integer.parseInt(args[2]);
+				fenStart = 3;
+			}
+			if (!perft.runScaling(new Position(joinFen(args, fenStart)),
+					depth, threads))
+				System.exit(1);
+			return;
+		}
+
+		if (args[0].equals("hash")) {
+			PerftTable table = new PerftTable(Integer.parseInt(args[1]));
+			new Perft(table).divide(new Position(joinFen(args, 3)),
+					Integer.parseInt(args[2]));
+			System.out.println(table.getStats());
+			return;
+		}
+
+		perft.divide(new Position(joinFen(args, 1)), Integer.parseInt(args[0]));
+	}
+
+	/**
+	 * Joins the arguments from <code>start</code> on back into a FEN, or
+	 * returns the start position if there are none.
+	 */
+	private static String joinFen(String[] args, int start) {
+		if (args.length <= start)
+			return Constants.getStartFen();
+		StringBuilder builder = new StringBuilder();
+		for (int i = start; i < args.length; i++)
+			builder.append(args[i]).append(' ');
+		return builder.toString().trim();
+	}
+
+	/**
+	 * Returns the number of leaf nodes <code>depth</code> plies below
+	 * <code>position</code>. Depth 1 is the number of legal moves. The
+	 * position is left unchanged.
+	 *
+	 * @param position
+	 * @param depth
+	 * @return
+	 */
+	public long perft(Position position, int depth) {
+		if (depth == 0)
+			return 1;
+		return perft(position, depth, 0);
+	}
+
+	/**
+	 * Prints the node count below each root move, then the total, time and
+	 * nodes per second, and returns the total.
+	 *
+	 * @param position
+	 * @param depth
+	 * @return
+	 */
+	public long divide(Position position, int depth) {
+		long start = System.nanoTime();
+		long total = 0;
+		if (depth == 0)
+			total = 1;
+		else {
+			int[] moves = moveBuffers[0];
+			int numMoves = generator.generateLegalMoves(position, moves);
+			for (int i = 0; i < numMoves; i++) {
+				position.makeMove(moves[i]);
+				long nodes = depth == 1 ? 1 : perft(position, depth - 1, 1);
+				position.unmakeMove(moves[i]);
+				System.out.println(PackedMove.toString(moves[i]) + ": " + nodes);
+				total += nodes;
+			}
+		}
+		long time = System.nanoTime() - start;
+
+		System.out.println();
+		System.out.println("Nodes: " + total);
+		System.out.println("Time: " + String.format("%.3f", time / 1e9) + " s");
+		System.out.println("Nodes/sec: " + nodesPerSecond(total, time));
+		return total;
+	}
+
+	/**
+	 * Runs every position of the reference suite and prints one line per
+	 * position. Returns false if any count differs from the reference.
+	 *
+	 * @return
+	 */
+	public boolean runSuite() {
+		boolean result = true;
+		long totalNodes = 0;
+		long totalTime = 0;
+		for (int i = 0; i < suite.length; i++) {
+			Position position = new Position(suite[i][0]);
+			int depth = Integer.parseInt(suite[i][1]);
+			long expected = Long.parseLong(suite[i][2]);
+
+			long start = System.nanoTime();
+			long nodes = perft(position, depth);
+			long time = System.nanoTime() - start;
+			totalNodes += nodes;
+			totalTime += time;
+
+			boolean isCorrect = nodes == expected;
+			result &= isCorrect;
+			System.out.println((isCorrect ? "ok   " : "FAIL ") + "depth "
+					+ depth + " " + nodes
+					+ (isCorrect ? "" : " (expected " + expected + ")")
+					+ " " + nodesPerSecond(nodes, time) + " nps  "
+					+ suite[i][0]);
+		}
+		System.out.println((result ? "Perft suite passed: " : "Perft suite FAILED: ")
+				+ totalNodes + " nodes in "
+				+ String.format("%.3f", totalTime / 1e9) + " s, "
+				+ nodesPerSecond(totalNodes, totalTime) + " nps");
+		return result;
+	}
+
+	/**
+	 * Counts the same nodes as perft, with the tree split into tasks that run
+	 * on a ForkJoinPool of <code>threads</code> threads. Every task plays its
+	 * moves on its own copy of the position, so <code>position</code> is left
+	 * unchanged.
+	 *
+	 * @param position
+	 * @param depth
+	 * @param threads
+	 * @return
+	 */
+	public static long parallelPerft(Position position, int depth, int threads) {
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+			return pool.invoke(new PerftTask(new Position(position), depth,
+					Math.min(splitPlies, depth - 1)));
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Counts <code>position</code> serially and then in parallel with 1, 2,
+	 * 4, ... threads up to <code>maxThreads</code>, printing time and speedup
+	 * over the serial count for each. Returns false if a parallel count
+	 * differs from the serial one.
+	 *
+	 * @param position
+	 * @param depth
+	 * @param maxThreads
+	 * @return
+	 */
+	public boolean runScaling(Position position, int depth, int maxThreads) {
+		System.out.println("Cores available: "
+				+ Runtime.getRuntime().availableProcessors());
+
+		// One untimed pass first, so the serial time isn't the JIT warming up
+		perft(position, depth);
+		long start = System.nanoTime();
+		long expected = perft(position, depth);
+		long serialTime = System.nanoTime() - start;
+		System.out.println("serial     " + expected + " nodes "
+				+ String.format("%8.3f", serialTime / 1e9) + " s "
+				+ nodesPerSecond(expected, serialTime) + " nps");
+
+		ArrayList<Integer> threadCounts = new ArrayList<Integer>();
+		for (int threads = 1; threads < maxThreads; threads *= 2)
+			threadCounts.add(threads);
+		threadCounts.add(maxThreads);
+
+		boolean result = true;
+		for (int threads : threadCounts) {
+			start = System.nanoTime();
+			long nodes = parallelPerft(position, depth, threads);
+			long time = System.nanoTime() - start;
+			boolean isCorrect = nodes == expected;
+			result &= isCorrect;
+			System.out.println(String.format("%2d threads ", threads) + nodes
+					+ " nodes " + String.format("%8.3f", time / 1e9) + " s "
+					+ nodesPerSecond(nodes, time) + " nps, speedup "
+					+ String.format("%.2f", serialTime / (double) time)
+					+ (isCorrect ? "" : "  MISMATCH, serial count is "
+							+ expected));
+		}
+		return result;
+	}
+
+	/**
+	 * Counts the subtree below one position. Until <code>splitPlies</code>
+	 * runs out it forks a child task with a position copy for every move,
+	 * after that the worker thread's own Perft counts serially.
+	 */
+	private static class PerftTask extends RecursiveTask<Long> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Position position;
+		private final int depth;
+		private final int splitPlies;
+
+		PerftTask(Position position, int depth, int splitPlies) {
+			this.position = position;
+			this.depth = depth;
+			this.splitPlies = splitPlies;
+		}
+
+		@Override
+		protected Long compute() {
+			if (splitPlies == 0)
+				return workerPerft.get().perft(position, depth);
+
+			int[] moves = new int[BitboardMoveGenerator.MAX_MOVES];
+			int numMoves = workerPerft.get().generator.generateLegalMoves(
+					position, moves);
+			ArrayList<PerftTask> tasks = new ArrayList<PerftTask>(numMoves);
+			for (int i = 0; i < numMoves; i++) {
+				position.makeMove(moves[i]);
+				tasks.add(new PerftTask(new Position(position.snapshot()),
+						depth - 1, splitPlies - 1));
+				position.unmakeMove(moves[i]);
+			}
+			invokeAll(tasks);
+
+			long nodes = 0;
+			for (PerftTask task : tasks)
+				nodes += task.join();
+			return nodes;
+		}
+	}
+
+	/**
+	 * Recursive part of perft. The last ply is not played out, the number of
+	 * legal moves is the leaf count. Bulk counting makes a one ply subtree as
+	 * cheap as a table probe, so only deeper ones go through the table.
+	 */
+	private long perft(Position position, int depth, int ply) {
+		boolean useTable = table != null && depth > 1;
+		if (useTable) {
+			long nodes = table.probe(position.getKey(), depth);
+			if (nodes >= 0)
+				return nodes;
+		}
+
+		int[] moves = moveBuffers[ply];
+		int numMoves = generator.generateLegalMoves(position, moves);
+		if (depth == 1)
+			return numMoves;
+
+		long nodes = 0;
+		for (int i = 0; i < numMoves; i++) {
+			position.makeMove(moves[i]);
+			nodes += perft(position, depth - 1, ply + 1);
+			position.unmakeMove(moves[i]);
+		}
+		if (useTable)
+			table.store(position.getKey(), depth, nodes);
+		return nodes;
+	}
+
+	private static long nodesPerSecond(long nodes, long nanos) {
+		return nanos == 0 ? 0 : (long) (nodes * 1e9 / nanos);
+	}
+}
@@ -0,0 +1,137 @@
+package controller;
+
+import java.util.Arrays;
+
+/**
+ * Cache of perft subtree counts keyed by Zobrist hash and remaining depth, so
+ * a subtree reached again through a transposition is counted once. Each
+ * entry is the full 64 bit key plus the count with the depth packed into its
+ * low byte, 16 bytes in all. The table is direct mapped and a store always
+ * replaces what was in the slot.
+ */
+public class PerftTable {
+
+	private final static int bytesPerEntry = 16;
+	private final static int depthBits = 8;
+	private final static long depthMask = (1L << depthBits) - 1;
+
+	// Mixes the depth into the index, so one position's counts at different
+	// depths don't all compete for one slot
+	private final static long depthSalt = 0x9E3779B97F4A7C15L;
+
+	private final long[] keys;
+	private final long[] counts;
+	private final int mask;
+
+	private long probes;
+	private long hits;
+	private long stores;
+
+	/**
+	 * Constructor. The number of entries is the largest power of two that
+	 * fits in <code>megabytes</code>.
+	 *
+	 * @param megabytes
+	 */
+	public PerftTable(int megabytes) {
+		long maxEntries = Math.max(1, (long) megabytes * 1024 * 1024
+				/ bytesPerEntry);
+		int size = Integer.highestOneBit((int) Math.min(maxEntries, 1 << 30));
+		keys = new long[size];
+		counts = new long[size];
+		mask = size - 1;
+	}
+
+	/**
+	 * Returns the node count stored for <code>key</code> at
+	 * <code>depth</code>, or -1 if it isn't in the table.
+	 *
+	 * @param key
+	 * @param depth
+	 * @return
+	 */
+	public long probe(long key, int depth) {
+		probes++;
+		int index = index(key, depth);
+		long entry = counts[index];
+		if (keys[index] == key && entry != 0 && (entry & depthMask) == depth) {
+			hits++;
+			return entry >>> depthBits;
+		}
+		return -1;
+	}
+
+	public void store(long key, int depth, long nodes) {
+		stores++;
+		int index = index(key, depth);
+		keys[index] = key;
+		counts[index] = nodes << depthBits | depth;
+	}
+
+	private int index(long key, int depth) {
+		return (int) (key ^ depth * depthSalt) & mask;
+	}
+
+	/**
+	 * Empties the table and resets the counters
+	 */
+	public void clear() {
+		Arrays.fill(keys, 0);
+		Arrays.fill(counts, 0);
+		probes = 0;
+		hits = 0;
+		stores = 0;
+	}
+
+	public int getNumEntries() {
+		return keys.length;
+	}
+
+	public long getMemoryBytes() {
+		return (long) keys.length * bytesPerEntry;
+	}
+
+	public long getProbes() {
+		return probes;
+	}
+
+	public long getHits() {
+		return hits;
+	}
+
+	/**
+	 * Returns the percentage of probes that found their subtree count
+	 *
+	 * @return
+	 */
+	public double getHitRate() {
+		return probes == 0 ? 0 : 100.0 * hits / probes;
+	}
+
+	/**
+	 * Returns the percentage of entries that hold a count
+	 *
+	 * @return
+	 */
+	public double getFillRate() {
+		int used = 0;
+		for (int i = 0; i < counts.length; i++)
+			if (counts[i] != 0)
+				used++;
+		return 100.0 * used / counts.length;
+	}
+
+	/**
+	 * Returns a one line summary of size and effectiveness, for logging
+	 *
+	 * @return
+	 */
+	public String getStats() {
+		return "Perft table: " + getNumEntries() + " entries, "
+				+ (getMemoryBytes() / (1024 * 1024)) + " MB, " + probes
+				+ " probes, " + hits + " hits ("
+				+ String.format("%.1f", getHitRate()) + "%), " + stores
+				+ " stores, " + String.format("%.1f", getFillRate())
+				+ "% full";
+	}
+}
@@ -1,21 +1,31 @@
 package controller;
 
-import java.util.ArrayList;
-
+import model.Model;
 import model.Move;
+import model.PackedMove;
 import model.Piece;
-import model.PieceArray;
+import model.Position;
 import utils.Constants;
 import utils.Log;
 
 
 public class RuleEngine {
-	private static boolean printFlag;
-	private static Controller controller;
-	static Log log = new Log();
+	private boolean printFlag;
+	private Model model;
+	private BoardController boardController;
+	Log log = new Log();
 
-	public RuleEngine(Controller controllerIn) {
-		RuleEngine.controller = controllerIn;
+	/**
+	 * Constructor. The rule engine works on one board: it reads and changes
+	 * only the model and board controller passed in, so separate boards can
+	 * each have their own rule engine.
+	 * 
+	 * @param modelIn
+	 * @param boardControllerIn
+	 */
+	public RuleEngine(Model modelIn, BoardController boardControllerIn) {
+		this.model = modelIn;
+		this.boardController = boardControllerIn;
 	}
 
 	/**
@@ -35,9 +45,9 @@ public class RuleEngine {
 	 * @return
 	 */
 
-	public static boolean validateMove(Move move,
+	public boolean validateMove(Move move,
 			BoardController boardController, boolean printFlag) {
-		RuleEngine.printFlag = printFlag;
+		this.printFlag = printFlag;
 
 		boolean result = true;
 
@@ -114,7 +124,7 @@ public class RuleEngine {
 	 * @param boardController
 	 * @return
 	 */
-	public static boolean isNotSelfCapture(Move move,
+	public boolean isNotSelfCapture(Move move,
 			BoardController boardController) {
 		boolean result = false;
 
@@ -145,7 +155,7 @@ public class RuleEngine {
 	 * @param boardController
 	 * @return
 	 */
-	public static boolean isLegalMoveStyle(Move move,
+	public boolean isLegalMoveStyle(Move move,
 			BoardController boardController) {
 		boolean result = false;
 		if (move.getPiece().getType() == Constants.getRookChar())
@@ -176,7 +186,7 @@ public class RuleEngine {
 	 * @param boardController
 	 * @return
 	 */
-	public static boolean isLegalRookMove(Move move,
+	public boolean isLegalRookMove(Move move,
 			BoardController boardController) {
 		boolean result = false;
 
@@ -195,7 +205,7 @@ public class RuleEngine {
 	 * @param boardController
 	 * @return
 	 */
-	public static boolean isLegalQueenMove(Move move,
+	public boolean isLegalQueenMove(Move move,
 			BoardController boardController) {
 		boolean result = false;
 
@@ -220,27 +230,29 @@ public class RuleEngine {
 	 * @param boardController
 	 * @return
 	 */
-	public static boolean isLegalPawnMove(Move move,
+	public boolean isLegalPawnMove(Move move,
 			BoardController boardController) {
 		boolean result = false;
-		// TODO En passant
 		// If it's a not capture move
 		if (move.getStartCol() == move.getEndCol()
 				&& boardController.getPieceByCoords(move.getEndRow(),
 						move.getEndCol()) == null) {
 			int deltaRow = move.getEndRow() - move.getStartRow();
 
+			// A pawn can only push two squares from its starting row
 			if (move.getEndCol() == move.getStartCol()) {
 				// White pawns
 				if (deltaRow == 1 && move.getPiece().isWhite())
 					result = true;
-				else if (deltaRow == 2 && !move.getPiece().isHasMoved()
+				else if (deltaRow == 2
+						&& move.getStartRow() == Constants.getWhitePawnRow()
 						&& move.getPiece().isWhite())
 					result = true;
 				// Black pawns
 				else if (deltaRow == -1 && !move.getPiece().isWhite())
 					result = true;
-				else if (deltaRow == -2 && !move.getPiece().isHasMoved()
+				else if (deltaRow == -2
+						&& move.getStartRow() == Constants.getBlackPawnRow()
 						&& !move.getPiece().isWhite())
 					result = true;
 			}
@@ -264,35 +276,13 @@ public class RuleEngine {
 
 			}
 		}
-		// If en passant
-		else if (!controller.getModel().getMoveList().isEmpty()) {
-			Move previousMove = controller.getModel().getMoveList()
-					.get(controller.getModel().getMoveList().size() - 1);
-			boolean previousPieceIsPawn = previousMove.getPiece().getType() == Constants
-					.getPawnChar();
-			boolean previousPieceIsDifferentColor = previousMove.getPiece()
-					.isWhite() != move.getPiece().isWhite();
-			boolean correctCol = move.getEndCol() == previousMove.getStartCol()
-					&& calculateDeltaColUnsigned(move) == 1;
-
-			if (previousPieceIsPawn && previousPieceIsDifferentColor
-					&& correctCol) {
-				// If white pawn
-				if (move.getPiece().isWhite()) {
-					if (calculateDeltaRowSigned(previousMove) == -2
-							&& move.getEndRow() == (previousMove.getEndRow() + 1)
-							&& move.getStartRow() == (previousMove.getEndRow()))
-						result = true;
-				}
-				// If black pawn
-				else {
-					if (calculateDeltaRowSigned(previousMove) == 2
-							&& move.getEndRow() == (previousMove.getEndRow() - 1)
-							&& move.getStartRow() == (previousMove.getEndRow()))
-						result = true;
-
-				}
-			}
+		// If en passant, one square diagonally forward onto the en passant
+		// square
+		else if (isEnPassantCapture(move)) {
+			int deltaRow = move.getEndRow() - move.getStartRow();
+			int forward = move.getPiece().isWhite() ? 1 : -1;
+			if (deltaRow == forward && calculateDeltaColUnsigned(move) == 1)
+				result = true;
 		}
 		// If it's not a capture move
 		return result;
@@ -306,7 +296,7 @@ public class RuleEngine {
 	 * @param boardController
 	 * @return
 	 */
-	public static boolean isLegalBishopMove(Move move,
+	public boolean isLegalBishopMove(Move move,
 			BoardController boardController) {
 		boolean result = false;
 
@@ -326,7 +316,7 @@ public class RuleEngine {
 	 * @param boardController
 	 * @return
 	 */
-	public static boolean isLegalKnightMove(Move move,
+	public boolean isLegalKnightMove(Move move,
 			BoardController boardController) {
 		boolean result = false;
 
@@ -348,9 +338,8 @@ public class RuleEngine {
 	 * @param boardController
 	 * @return
 	 */
-	public static boolean isLegalKingMove(Move move) {
+	public boolean isLegalKingMove(Move move) {
 		boolean result = false;
-		BoardController boardController = controller.getBoardController();
 		int deltaRow = calculateDeltaRowUnsigned(move);
 		int deltaCol = calculateDeltaColUnsigned(move);
 
@@ -358,181 +347,37 @@ public class RuleEngine {
 		if (deltaRow < 2 && deltaCol < 2)
 			result = true;
 
-		// Castling
-		else if (deltaCol == 2 && deltaRow == 0
-				&& (move.getStartRow() == 0 || move.getStartRow() == 7)) {
-
-			// Conditions for castling
-			boolean kingHasMoved = false;
-			boolean rookHasMoved = false;
-			boolean isInCheck = false;
-			boolean isCastlingThroughCheck = false;
-			boolean isCastlingIntoCheck = false;
-			boolean piecesBetweenRookAndKing = false;
-			boolean isRookDeadOrMissing = false;
-
-			// Get signed deltaCol
-			deltaCol = calculateDeltaColSigned(move);
-
-			boolean isWhite = !move.getPiece().isWhite();
-			kingHasMoved = move.getPiece().isHasMoved();
-
-			// Only continue if king hasn't moved
-			if (!kingHasMoved) {
-				isInCheck = isAttackedSquare(move.getPiece().getRow(), move
-						.getPiece().getCol(), isWhite);
-				// If castling kingside and rook is alive
-				if (deltaCol > 0) {
-					if (boardController.getPieceByCoords(move.getStartRow(), 7) == null)
-						isRookDeadOrMissing = true;
-					else {
-
-						rookHasMoved = boardController.getPieceByCoords(
-								move.getStartRow(), 7).isHasMoved();
-
-						for (int i = 1; i < 3; i++) {
-							if (boardController.getPieceByCoords(
-									move.getStartRow(), move.getStartCol() + i) != null) {
-								piecesBetweenRookAndKing = true;
-								if (move.getStartCol() + i > 7)
-									System.out.print("Out of bounds");
-							}
-						}
-						int row = move.getPiece().getRow();
-						int col = move.getPiece().getCol() + 1;
-						isCastlingThroughCheck = isKingVulnerableOnThisSquare(
-								boardController, isWhite, move, row, col);
-
-						col = col + 1;
-						isCastlingIntoCheck = isKingVulnerableOnThisSquare(
-								boardController, isWhite, move, row, col);
-
-					}
-				}
-				// If castling queenside and rook is alive
-				else if (boardController
-						.getPieceByCoords(move.getStartRow(), 0) == null)
-					isRookDeadOrMissing = true;
-				else {
-					rookHasMoved = boardController.getPieceByCoords(
-							move.getStartRow(), 0).isHasMoved();
-					for (int i = 1; i < 4; i++) {
-						if (boardController.getPieceByCoords(
-								move.getStartRow(), move.getStartCol() - i) != null) {
-							piecesBetweenRookAndKing = true;
-							if (move.getStartCol() - i < 0)
-								System.out.print("Out of bounds");
-						}
-					}
-
-					int row = move.getPiece().getRow();
-					int col = move.getPiece().getCol() - 1;
-					isCastlingThroughCheck = isKingVulnerableOnThisSquare(
-							boardController, isWhite, move, row, col);
-
-					col = col - 1;
-					isCastlingIntoCheck = isKingVulnerableOnThisSquare(
-							boardController, isWhite, move, row, col);
-
-				}
-			}
-
-			result = !kingHasMoved && !rookHasMoved && !isInCheck
-					&& !isCastlingThroughCheck && !isCastlingIntoCheck
-					&& !piecesBetweenRookAndKing && !isRookDeadOrMissing;
+		// Castling. The position only keeps a castling right while the king
+		// and that rook are unmoved on their home squares.
+		else if (deltaCol == 2 && deltaRow == 0) {
+			int color = move.getPiece().isWhite() ? Position.WHITE
+					: Position.BLACK;
+			int kingSquare = Position.square(move.getStartRow(),
+					move.getStartCol());
+			boolean isKingside = calculateDeltaColSigned(move) > 0;
+
+			result = kingSquare == boardController.getPosition()
+					.getKingSquare(color)
+					&& boardController.getPosition().canCastle(color,
+							isKingside);
 		}
 
 		return result;
 	}
 
-	/**
-	 * Helper method for king castling logic. Simulates the king moving to that
-	 * square so that the square can be checked for any piece attacking it (the
-	 * king has to be on the square in question, since a pawn wouldn't be able
-	 * to move diagonally and attack an empty square). Returns true if king is
-	 * vulnerable on the square designated by parameters row and col.
-	 * 
-	 * @param row
-	 * @param col
-	 * @return
-	 */
-	public static boolean isKingVulnerableOnThisSquare(
-			BoardController boardController, boolean isWhite, Move move,
-			int newRow, int newCol) {
-		Piece piece = move.getPiece();
-		Piece prevPiece = null;
-
-		boolean isVulerable = false;
-
-		// Simulate the move so pawns know if they can capture diagonally
-		prevPiece = boardController.getPieceByCoords(newRow, newCol);
-		boardController.setPieceByCoords(newRow, newCol, piece);
-		piece.setCol(newCol);
-
-		isVulerable = isAttackedSquare(newRow, newCol, isWhite);
-
-		if (prevPiece != null)
-			boardController.setPieceByCoords(newRow, newCol, prevPiece);
-		else
-			boardController.clearSquare(newRow, newCol);
-
-		// Put piece back
-		boardController.setPieceByCoords(move.getStartRow(),
-				move.getStartCol(), piece);
-		piece.setCol(move.getStartCol());
-
-		return isVulerable;
-	}
-
 	/**
 	 * Checks to see if any piece of team color can attack the square designated
-	 * by parameters row and col.
+	 * by parameters row and col. The lookup runs against the position's attack
+	 * map for that color, which is built once and reused until the board
+	 * changes.
 	 * 
 	 * @return
 	 */
-	public static boolean isAttackedSquare(int row, int col, boolean isWhite) {
-		boolean result = false;
-		PieceArray pieces;
-		if (isWhite)
-			pieces = controller.getModel().getWhitePieces();
-		else
-			pieces = controller.getModel().getBlackPieces();
-		for (int i = 0; i < PieceArray.numPieces; i++) {
-			Piece piece = pieces.getPiece(i);
-			if (piece != null){
-			
-			boolean seemsValid = false;
-			int unsignedRowDifference = Math.abs(row - piece.getRow());
-			int unsignedColDifference = Math.abs(col - piece.getCol());
-
-			// If it's not the move style of the piece to attack the king's square,
-			// don't bother with the elaborate, expensive validateCheck method
-			if ((piece.getType() == Constants.getRookChar() && (piece.getRow() == row || piece
-					.getCol() == col)))
-				seemsValid = true;
-			else if ((piece.getType() == Constants.getPawnChar()
-					&& (unsignedColDifference == 1) && (unsignedRowDifference == 1)))
-				seemsValid = true;
-			else if ((piece.getType() == Constants.getBishopChar() && unsignedColDifference == unsignedRowDifference))
-				seemsValid = true;
-			else if ((piece.getType() == Constants.getKnightChar()
-					&& (unsignedColDifference == 1 && unsignedRowDifference == 2) || (unsignedColDifference == 2 && unsignedRowDifference == 1)))
-				seemsValid = true;
-			else if ((piece.getType() == Constants.getQueenChar() && (unsignedRowDifference == unsignedColDifference)||(row == piece.getRow() || col == piece.getCol())))
-				seemsValid = true;
-			else if (piece.getType() == Constants.getKingChar() && unsignedRowDifference < 2 && unsignedColDifference < 2)
-				seemsValid = true;
-			if (seemsValid)
-			{
-			if (validateCheck(
-						new Move(piece, piece.getRow(), piece.getCol(), row,
-								col), controller.getBoardController(), false))
-//					result = true;
-				return true;
-			}}
-		}
+	public boolean isAttackedSquare(int row, int col, boolean isWhite) {
+		int color = isWhite ? Position.WHITE : Position.BLACK;
 
-		return result;
+		return (boardController.getPosition().getAttackedSquares(color)
+				& 1L << Position.square(row, col)) != 0;
 	}
 
 	/**
@@ -543,9 +388,9 @@ public class RuleEngine {
 	 * 
 	 * @return
 	 */
-	public static boolean validateCheck(Move move,
+	public boolean validateCheck(Move move,
 			BoardController boardController, boolean printFlag) {
-		RuleEngine.printFlag = printFlag;
+		this.printFlag = printFlag;
 
 		boolean result = true;
 
@@ -595,7 +440,7 @@ public class RuleEngine {
 	 * @param boardController
 	 * @return
 	 */
-	public static boolean isUnblocked(Move move, BoardController boardController) {
+	public boolean isUnblocked(Move move, BoardController boardController) {
 		boolean result = true;
 
 		if (move.getPiece().getType() == Constants.getRookChar())
@@ -625,7 +470,7 @@ public class RuleEngine {
 	 * @param boardController
 	 * @return
 	 */
-	public static boolean isUnblockedKnightPath(Move move,
+	public boolean isUnblockedKnightPath(Move move,
 			BoardController boardController) {
 		return true;
 	}
@@ -638,7 +483,7 @@ public class RuleEngine {
 	 * @param boardController
 	 * @return
 	 */
-	public static boolean isUnblockedBishopPath(Move move,
+	public boolean isUnblockedBishopPath(Move move,
 			BoardController boardController) {
 		boolean result = true;
 
@@ -667,7 +512,7 @@ public class RuleEngine {
 	 * @param boardController
 	 * @return
 	 */
-	public static boolean isUnblockedRookPath(Move move,
+	public boolean isUnblockedRookPath(Move move,
 			BoardController boardController) {
 		boolean result = true;
 		int distance = 0;
@@ -719,7 +564,7 @@ public class RuleEngine {
 	 * @param boardController
 	 * @return
 	 */
-	public static boolean isUnblockedPawnPath(Move move,
+	public boolean isUnblockedPawnPath(Move move,
 			BoardController boardController) {
 		boolean result = true;
 
@@ -749,7 +594,7 @@ public class RuleEngine {
 	 * @param boardController
 	 * @return
 	 */
-	public static boolean isUnblockedQueenPath(Move move,
+	public boolean isUnblockedQueenPath(Move move,
 			BoardController boardController) {
 		boolean result = false;
 
@@ -774,7 +619,7 @@ public class RuleEngine {
 	 * @param boardController
 	 * @return
 	 */
-	public static boolean isUnblockedKingPath(Move move,
+	public boolean isUnblockedKingPath(Move move,
 			BoardController boardController) {
 		return true;
 	}
@@ -782,232 +627,157 @@ public class RuleEngine {
 	/**
 	 * Simulates the move in question, and checks to see if the moving player
 	 * would be in check afterwards. If so, false is returned, true otherwise.
-	 * The board is reverted to it's position before the simulation afterwards.
+	 * 
+	 * <p>
+	 * The move is played and taken back on the bitboard position only, so the
+	 * Piece[][] board, the piece lists and the move list are never touched.
 	 * 
 	 * @param move
 	 * @param boardController
 	 * @return
 	 */
-	public static boolean isNotSelfCheck(Move move,
+	public boolean isNotSelfCheck(Move move,
 			BoardController boardController) {
 		boolean result = true;
-		boolean isWhite = move.getPiece().isWhite();
-		boolean opponentIsWhite = !isWhite;
-		
-		Piece king = null;
-		int kingRow = 0;
-		int kingCol = 0;
-
-		Piece capturedPiece = processMove(move);
-
-		PieceArray pieces = null;
-		if (isWhite)
-			pieces = controller.getModel().getWhitePieces();
-		else
-			pieces = controller.getModel().getBlackPieces();
-		// try{
-		king = pieces.getKing();
-				
-		// }
-		// catch (NullPointerException nullPointerException){
-		// controller.log.error(nullPointerException.toString());
-		// }
-		if (king == null) {
-			System.out
-					.println("RuleEngine.isNotSelfCheck: King not in piece list");
-			for (Move m : controller.getModel().getMoveList())
-				System.out.println(m.coloredAlgebraicNotationPrint());
-
-			if (capturedPiece != null)
-				System.out.println("Captured piece: "
-						+ capturedPiece.toString());
-		}
-		// If it is the king that's moving, it is his new position which will
-		// need to be checked if it is being attacked. Otherwise, use his
-		// current location
-		if (move.getPiece().getType() == Constants.getKingChar()) {
-			kingRow = move.getEndRow();
-			kingCol = move.getEndCol();
-		} else {
-			kingRow = king.getRow();
-			kingCol = king.getCol();
-		}
-
-		result = !isAttackedSquare(kingRow, kingCol, opponentIsWhite);
+		Position position = boardController.getPosition();
+		int color = move.getPiece().isWhite() ? Position.WHITE : Position.BLACK;
 
-		// Revert the board to it's previous state
-		undoChanges(capturedPiece, move);
-
-		// If the king wasnt located in the above logic, all bets are off.
-		if (king == null) {
+		// If the king isn't on the board, all bets are off.
+		if (position.getKingSquare(color) == Position.NO_SQUARE) {
 			System.out
 					.println("RuleEngine.isNotSelfCheck: King was not found on the board, something has gone wrong. King got captured? Returning false.");
 			System.out.println("Move: " + move.algebraicNotationPrint());
-			result = false;
+			return false;
 		}
 
+		int packedMove = PackedMove.fromMove(move, position);
+		position.makeMove(packedMove);
+		result = !position.isInCheck(color);
+
+		// Revert the position to it's previous state
+		position.unmakeMove(packedMove);
+
 		return result;
 	}
 
 	/**
-	 * If parameter capturedPiece is a real piece, it is returned to the board
-	 * and the piece list in the model. The piece that was moved via parameter
-	 * move is returned to it's initial square also.
+	 * If parameter move was a kingside or queenside castle, this method moves
+	 * the rook to the proper square
 	 * 
-	 * @param capturedPiece
 	 * @param move
 	 */
-	public static void undoChanges(Piece capturedPiece, Move move) {
-		if (capturedPiece != null) {
-			PieceArray pieces;
-			if (capturedPiece.isWhite())
-				pieces = controller.getModel().getWhitePieces();
-			else
-				pieces = controller.getModel().getBlackPieces();
-
-			pieces.add(capturedPiece);
-
-//			if (capturedPiece.getType() == Constants.getPawnChar())
-//				log.info("Adding back piece: " + capturedPiece.toString());
-			controller.getModel().getCapturedPieces().remove(capturedPiece);
-
-			controller.getBoardController().setPieceByCoords(move.getEndRow(),
-					move.getEndCol(), capturedPiece);
+	public void handleCastling(Move move) {
+		if (move.getPiece().getType() == Constants.getKingChar()
+				&& RuleEngine.calculateDeltaColUnsigned(move) == 2) {
+			if (RuleEngine.calculateDeltaColSigned(move) == 2) {
+				Piece rook = boardController.getPieceByCoords(
+						move.getStartRow(), 7);
+				boardController.setPieceByCoords(move.getStartRow(), 5, rook);
+				rook.setCol(5);
+				boardController.clearSquare(move.getStartRow(), 7);
+			} else {
+				Piece rook = boardController.getPieceByCoords(
+						move.getStartRow(), 0);
+				boardController.setPieceByCoords(move.getStartRow(), 3, rook);
+				rook.setCol(3);
+				boardController.clearSquare(move.getStartRow(), 0);
+			}
 
 		}
 
-		// Remove move from move list
-		ArrayList<Move> moveList = controller.getModel().getMoveList();
-		moveList.remove(move);
-
-		// Clear the end spot of the tested move
-		controller.getBoardController().clearSquare(move.getEndRow(),
-				move.getEndCol());
-
-		// Set the captured piece back where it went
-		if (capturedPiece != null)
-			controller.getBoardController().setPieceByCoords(
-					capturedPiece.getRow(), capturedPiece.getCol(),
-					capturedPiece);
+	}
 
-		undoCastleMove(move);
+	/**
+	 * If execution gets to this method, then Move parameter move is valid.
+	 * Check if it was an en passant capture, i.e. a pawn landing on the en
+	 * passant square of the position. If so, the captured pawn is beside the
+	 * start square, on the column the pawn moved to, so that square gets
+	 * cleared. Has to be called before the move updates the position state.
+	 * 
+	 * Returns a reference to the pawn that got captured, if one exists
+	 * 
+	 * @param move
+	 */
+	public Piece handleEnPassantCaptures(Move move) {
+		Piece pawnCaptured = null;
 
-		// Set the tested move piece back where it was
-		controller.getBoardController().setPieceByCoords(move.getStartRow(),
-				move.getStartCol(), move.getPiece());
+		if (isEnPassantCapture(move)) {
+			pawnCaptured = boardController.getPieceByCoords(
+					move.getStartRow(), move.getEndCol());
+			removePieceFromList(pawnCaptured);
 
-		move.getPiece().setRow(move.getStartRow());
-		move.getPiece().setCol(move.getStartCol());
+			boardController.clearSquare(move.getStartRow(), move.getEndCol());
+		}
+		return pawnCaptured;
 
-		undoPawnPromote(move);
 	}
 
 	/**
-	 * Sets a piece's pieceType back to pawn if it had been promoted
+	 * Returns true if <code>move</code> is a pawn capturing en passant in
+	 * the current position: a diagonal pawn move onto the en passant square,
+	 * made by the side to move.
 	 * 
 	 * @param move
+	 * @return
 	 */
-	public static void undoPawnPromote(Move move) {
-
-		// TODO: test this to see if it works
-		if (move.getPromotePiece() != Character.UNASSIGNED) {
-			move.getPiece().setType(Constants.getPawnChar());
-		}
+	public boolean isEnPassantCapture(Move move) {
+		Position position = boardController.getPosition();
+		int color = move.getPiece().isWhite() ? Position.WHITE : Position.BLACK;
+		return move.getPiece().getType() == Constants.getPawnChar()
+				&& move.getStartCol() != move.getEndCol()
+				&& color == position.getSideToMove()
+				&& Position.square(move.getEndRow(), move.getEndCol()) == position
+						.getEnPassantSquare();
 	}
 
 	/**
-	 * Returns a rook and king to their original columns if castling had taken
-	 * place.
+	 * Removes the piece on the destination square of Move parameter move from
+	 * it's black/white piece list in the model.
+	 * 
+	 * Note: This method gets called eventually when checking to see how many
+	 * moves a player has form a given position. If the player can check their
+	 * opponent, then capturing the enemy king is a legal move from that
+	 * position (even though it is not that player's turn). The end result is
+	 * that the king might get "captured" by this method, but it's not because
+	 * it's possible, the engine is just seeing if that is a legal move from the
+	 * position (assuming it were able to move).
 	 * 
 	 * @param move
 	 */
-	private static void undoCastleMove(Move move) {
-		// TODO Auto-generated method stub
-		if (move.getPiece().getType() == Constants.getKingChar()
-				&& RuleEngine.calculateDeltaColUnsigned(move) == 2) {
-			if (RuleEngine.calculateDeltaColSigned(move) == 2) {
-				Piece rook = controller.boardController.getPieceByCoords(
-						move.getStartRow(),
-						Constants.getKingsideCastleRookCol());
-				controller.boardController.setPieceByCoords(move.getStartRow(),
-						Constants.getKingRookCol(), rook);
-				rook.setCol(Constants.getKingRookCol());
-				controller.boardController.clearSquare(move.getStartRow(),
-						Constants.getKingsideCastleRookCol());
-			} else {
-				Piece rook = controller.boardController.getPieceByCoords(
-						move.getStartRow(),
-						Constants.getQueensideCastleRookCol());
-				controller.boardController.setPieceByCoords(move.getStartRow(),
-						Constants.getQueenRookCol(), rook);
-				rook.setCol(Constants.getQueenRookCol());
-				controller.boardController.clearSquare(move.getStartRow(),
-						Constants.getQueensideCastleRookCol());
-			}
-
-		}
+	public void removePieceFromList(Move move) {
+		removePieceFromList(boardController.getPieceByCoords(move.getEndRow(),
+				move.getEndCol()));
 	}
 
 	/**
-	 * Handles the movement of parameter move on the real board, and returns a
-	 * reference to any piece that got captured
+	 * Removes <code>piece</code> from it's black/white piece list in the model
+	 * and adds it to the captured pieces.
 	 * 
-	 * @param move
-	 * @return
+	 * @param piece
 	 */
-	public static Piece processMove(Move move) {
-		Piece capturedPiece = controller.getBoardController().getPieceByCoords(
-				move.getEndRow(), move.getEndCol());
-
-		if (controller.getBoardController().getPieceByCoords(move.getStartRow(), move.getStartCol())== null)
-			System.out.println("RuleEngine.process move: Moving null piece ERROR");
-		
-		// Add move to move list
-		ArrayList<Move> moveList = controller.getModel().getMoveList();
-		moveList.add(move);
-
-		// If the move was a successful capture, remove the captured piece from
-		// the list
-		if (capturedPiece != null) {
-			controller.removePieceFromList(move);
-//			if (capturedPiece.getType() == Constants.getPawnChar())
-//				log.info("Removing piece: " + capturedPiece.toString());
-		}
+	private void removePieceFromList(Piece piece) {
 
-		// Handle En Passant. If a non-null value is returned, then there was a
-		// en passant capture and we save a reference to the captured
-		// pawn
-		Piece tmpPiece = controller.handleEnPassantCaptures(move);
-		controller.handleCastling(move);
-		if (tmpPiece != null)
-			capturedPiece = tmpPiece;
-
-		// Clear move the piece to the new square, clear the old square
-		controller.getBoardController().setPieceByCoords(move.getEndRow(),
-				move.getEndCol(), move.getPiece());
-		controller.getBoardController().clearSquare(move.getStartRow(),
-				move.getStartCol());
+		if (piece == null)
+			log.error("RuleEngine.removePieceFromList: Removing null piece?");
 
-		move.getPiece().setRow(move.getEndRow());
-		move.getPiece().setCol(move.getEndCol());
+		if (piece.isWhite()) {
+			model.getWhitePieces().remove(piece);
+		} else
+			model.getBlackPieces().remove(piece);
 
-		handlePawnPromotes(move);
+		model.getCapturedPieces().add(piece);
 
-		return capturedPiece;
 	}
 
 	/**
-	 * Changes a piece's type if the move in question is a pawn promote.
+	 * Returns true if the move is a pawn moving two squares forward
 	 * 
 	 * @param move
+	 * @return
 	 */
-	public static void handlePawnPromotes(Move move) {
-
-		// TODO does this work?
-		if (move.getPromotePiece() != Character.UNASSIGNED) {
-			move.getPiece().setType(move.getPromotePiece());
-		}
-
+	public static boolean isDoublePawnPush(Move move) {
+		return move.getPiece().getType() == Constants.getPawnChar()
+				&& calculateDeltaRowUnsigned(move) == 2;
 	}
 
 	public static int calculateDeltaRowUnsigned(Move move) {
@@ -0,0 +1,231 @@
+package controller;
+
+import model.PackedMove;
+
+/**
+ * Fixed size table of search results keyed by Zobrist hash, shared by every
+ * search that is handed the same instance. Each entry is three longs in three
+ * primitive arrays: a check word, the packed info (best move, depth, bound
+ * type, age) and the raw bits of the score.
+ *
+ * <p>
+ * Nothing is locked. The check word is stored as key ^ info ^ score, and a
+ * probe only accepts an entry if XORing the three words it read gives back
+ * its own key. An entry that another thread was halfway through writing, or
+ * that belongs to another position, fails that test and reads as a miss.
+ *
+ * <p>
+ * Entries come in buckets of two. A store replaces the entry of the same
+ * position if there is one, otherwise an empty entry, an entry left over from
+ * an earlier search, or the shallower of the two, in that order.
+ */
+public class TranspositionTable {
+
+	// Bound types
+	public final static int EXACT = 1;
+	public final static int LOWER_BOUND = 2;
+	public final static int UPPER_BOUND = 3;
+
+	private final static int bytesPerEntry = 24;
+
+	// Info word layout: move in the low 27 bits (see PackedMove), then depth,
+	// bound type and age
+	private final static int moveBits = 27;
+	private final static long moveMask = (1L << moveBits) - 1;
+	private final static int depthShift = moveBits;
+	private final static int boundShift = depthShift + 8;
+	private final static int ageShift = boundShift + 2;
+
+	private final long[] checks;
+	private final long[] infos;
+	private final long[] scores;
+	private final int mask;
+
+	// Counts the search started since the table was made, so entries of an
+	// earlier search can be told apart and replaced first
+	private int age;
+
+	// Statistics. Several threads may add to them at once, so under a
+	// parallel search they are approximate.
+	private long probes;
+	private long hits;
+
+	/**
+	 * Constructor. The number of entries is the largest power of two that
+	 * fits in <code>megabytes</code>.
+	 *
+	 * @param megabytes
+	 */
+	public TranspositionTable(int megabytes) {
+		long maxEntries = Math.max(2, (long) megabytes * 1024 * 1024
+				/ bytesPerEntry);
+		int size = Integer.highestOneBit((int) Math.min(maxEntries, 1 << 30));
+		checks = new long[size];
+		infos = new long[size];
+		scores = new long[size];
+		mask = size - 1;
+	}
+
+	/**
+	 * Marks the start of a new search. Entries stored before now are the
+	 * first to be replaced. The age is a plain field, so this must be called
+	 * before the threads that search with the table are started.
+	 */
+	public void newSearch() {
+		age = (age + 1) & 0xFF;
+	}
+
+	/**
+	 * Looks up <code>key</code>. On a hit, returns true and copies the entry
+	 * into <code>probe</code>, which belongs to the calling search.
+	 *
+	 * @param key
+	 * @param probe
+	 * @return
+	 */
+	public boolean probe(long key, Probe probe) {
+		probes++;
+		int index = (int) key & mask & ~1;
+		for (int i = index; i <= index + 1; i++) {
+			long info = infos[i];
+			long score = scores[i];
+			if ((checks[i] ^ info ^ score) == key && info != 0) {
+				hits++;
+				probe.move = (int) (info & moveMask);
+				probe.depth = (int) (info >>> depthShift) & 0xFF;
+				probe.bound = (int) (info >>> boundShift) & 3;
+				probe.score = Double.longBitsToDouble(score);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Stores the result of searching the position with hash <code>key</code>
+	 * to <code>depth</code>.
+	 *
+	 * @param key
+	 * @param move
+	 *            best move found, or PackedMove.NO_MOVE
+	 * @param depth
+	 * @param bound
+	 *            EXACT, LOWER_BOUND or UPPER_BOUND
+	 * @param score
+	 */
+	public void store(long key, int move, int depth, int bound, double score) {
+		int index = (int) key & mask & ~1;
+		int victim = index;
+		int victimPriority = Integer.MAX_VALUE;
+		for (int i = index; i <= index + 1; i++) {
+			long info = infos[i];
+			if ((checks[i] ^ info ^ scores[i]) == key) {
+				// Keep the best move an earlier search of this position
+				// found if this one has none
+				if (move == PackedMove.NO_MOVE)
+					move = (int) (info & moveMask);
+				victim = i;
+				break;
+			}
+			int priority = info == 0 ? -1
+					: (int) (info >>> ageShift) != age ? 0
+							: 1 + ((int) (info >>> depthShift) & 0xFF);
+			if (priority < victimPriority) {
+				victim = i;
+				victimPriority = priority;
+			}
+		}
+
+		long info = (move & moveMask) | (long) Math.min(depth, 0xFF) << depthShift
+				| (long) bound << boundShift | (long) age << ageShift;
+		long scoreBits = Double.doubleToRawLongBits(score);
+		infos[victim] = info;
+		scores[victim] = scoreBits;
+		checks[victim] = key ^ info ^ scoreBits;
+	}
+
+	/**
+	 * Empties the table and resets the statistics
+	 */
+	public void clear() {
+		for (int i = 0; i <= mask; i++) {
+			checks[i] = 0L;
+			infos[i] = 0L;
+			scores[i] = 0L;
+		}
+		age = 0;
+		probes = 0;
+		hits = 0;
+	}
+
+	public int getNumEntries() {
+		return mask + 1;
+	}
+
+	public long getMemoryBytes() {
+		return (long) getNumEntries() * bytesPerEntry;
+	}
+
+	/**
+	 * Returns the percentage of probes that found their position
+	 *
+	 * @return
+	 */
+	public double getHitRate() {
+		return probes == 0 ? 0 : 100.0 * hits / probes;
+	}
+
+	/**
+	 * Returns the percentage of entries written during the current search,
+	 * sampled from the first thousand.
+	 *
+	 * @return
+	 */
+	public double getFillRate() {
+		int sample = Math.min(1000, getNumEntries());
+		int used = 0;
+		for (int i = 0; i < sample; i++)
+			if (infos[i] != 0 && (int) (infos[i] >>> ageShift) == age)
+				used++;
+		return 100.0 * used / sample;
+	}
+
+	/**
+	 * Returns a one line summary of size and effectiveness, for logging
+	 *
+	 * @return
+	 */
+	public String getStats() {
+		return "Transposition table: " + (getMemoryBytes() / (1024 * 1024))
+				+ " MB, " + probes + " probes, "
+				+ String.format("%.1f", getHitRate()) + "% hits, "
+				+ String.format("%.1f", getFillRate()) + "% full";
+	}
+
+	/**
+	 * The fields of the entry found by the last successful probe it was
+	 * passed to. Every search keeps its own, so probes can run in parallel.
+	 */
+	public static class Probe {
+		int move;
+		int depth;
+		int bound;
+		double score;
+
+		public int getMove() {
+			return move;
+		}
+
+		public int getDepth() {
+			return depth;
+		}
+
+		public int getBound() {
+			return bound;
+		}
+
+		public double getScore() {
+			return score;
+		}
+	}
+}
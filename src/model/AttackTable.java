@@ -0,0 +1,149 @@
+package model;
+
+import java.util.Arrays;
+
+import utils.Bitboards;
+
+/**
+ * Attack information a Position keeps up to date as pieces come and go, when
+ * Constants.getAttackMode is INCREMENTAL. For every square it holds the
+ * squares the piece standing there attacks, and the squares of every piece of
+ * either color that attacks it. Which pieces of one color attack a square, and
+ * how many, is then one AND with that color's occupancy.
+ *
+ * <p>
+ * Placing or removing a piece only changes the attacks of that piece and of
+ * the sliders whose rays reach its square, so only those are recomputed.
+ * Every other entry is left alone.
+ */
+public class AttackTable {
+
+	// Squares attacked by the piece on each square, 0 for empty squares
+	final long[] attacksFrom = new long[64];
+
+	// Squares holding a piece, of either color, that attacks each square
+	final long[] attackersTo = new long[64];
+
+	/**
+	 * Empties the table, for an empty board.
+	 */
+	void clear() {
+		Arrays.fill(attacksFrom, 0L);
+		Arrays.fill(attackersTo, 0L);
+	}
+
+	/**
+	 * Copies every entry of <code>other</code> into this table.
+	 *
+	 * @param other
+	 */
+	void copyFrom(AttackTable other) {
+		System.arraycopy(other.attacksFrom, 0, attacksFrom, 0, 64);
+		System.arraycopy(other.attackersTo, 0, attackersTo, 0, 64);
+	}
+
+	/**
+	 * Updates the table for a piece that was just put on square
+	 * <code>sq</code> of <code>position</code>. Sliders that reached through
+	 * the square are now blocked there.
+	 *
+	 * @param position
+	 * @param sq
+	 */
+	void pieceAdded(Position position, int sq) {
+		updateSliders(position, attackersTo[sq]);
+		setAttacks(sq, attacks(position.mailbox[sq], sq, position.occupied));
+	}
+
+	/**
+	 * Updates the table for a piece that was just taken off square
+	 * <code>sq</code> of <code>position</code>. Sliders that stopped at the
+	 * square now reach past it.
+	 *
+	 * @param position
+	 * @param sq
+	 */
+	void pieceRemoved(Position position, int sq) {
+		setAttacks(sq, 0L);
+		updateSliders(position, attackersTo[sq]);
+	}
+
+	/**
+	 * Recomputes the attacks of the bishops, rooks and queens among
+	 * <code>attackers</code>.
+	 */
+	private void updateSliders(Position position, long attackers) {
+		long[] pieceBoards = position.pieceBoards;
+		long sliders = attackers
+				& (pieceBoards[Position.BISHOP] | pieceBoards[Position.ROOK]
+						| pieceBoards[Position.QUEEN]
+						| pieceBoards[6 + Position.BISHOP]
+						| pieceBoards[6 + Position.ROOK] | pieceBoards[6 + Position.QUEEN]);
+		while (sliders != 0) {
+			int sq = Long.numberOfTrailingZeros(sliders);
+			sliders &= sliders - 1;
+			setAttacks(sq, attacks(position.mailbox[sq], sq, position.occupied));
+		}
+	}
+
+	/**
+	 * Replaces the attacks of the piece on <code>sq</code>, flipping its bit
+	 * in the attacker sets of only the squares that changed.
+	 */
+	private void setAttacks(int sq, long attacks) {
+		long changed = attacksFrom[sq] ^ attacks;
+		long bit = 1L << sq;
+		while (changed != 0) {
+			int target = Long.numberOfTrailingZeros(changed);
+			changed &= changed - 1;
+			attackersTo[target] ^= bit;
+		}
+		attacksFrom[sq] = attacks;
+	}
+
+	/**
+	 * Returns the squares a piece with code <code>code</code> on
+	 * <code>sq</code> attacks when the occupied squares are
+	 * <code>occupied</code>.
+	 */
+	private static long attacks(int code, int sq, long occupied) {
+		switch (Position.typeOf(code)) {
+		case Position.PAWN:
+			return Bitboards.pawnAttacks(sq, Position.colorOf(code));
+		case Position.KNIGHT:
+			return Bitboards.knightAttacks(sq);
+		case Position.BISHOP:
+			return Bitboards.bishopAttacks(sq, occupied);
+		case Position.ROOK:
+			return Bitboards.rookAttacks(sq, occupied);
+		case Position.QUEEN:
+			return Bitboards.queenAttacks(sq, occupied);
+		default:
+			return Bitboards.kingAttacks(sq);
+		}
+	}
+
+	/**
+	 * Debug check. Returns true if every entry matches attacks computed from
+	 * scratch for <code>position</code>.
+	 *
+	 * @param position
+	 * @return
+	 */
+	public boolean verify(Position position) {
+		long[] expectedTo = new long[64];
+		for (int sq = 0; sq < 64; sq++) {
+			long expected = position.mailbox[sq] == Position.EMPTY ? 0L
+					: attacks(position.mailbox[sq], sq, position.occupied);
+			if (attacksFrom[sq] != expected)
+				return false;
+			long targets = expected;
+			while (targets != 0) {
+				int target = Long.numberOfTrailingZeros(targets);
+				targets &= targets - 1;
+				expectedTo[target] |= 1L << sq;
+			}
+		}
+		return Arrays.equals(expectedTo, attackersTo);
+	}
+}
@@ -7,6 +7,10 @@ import utils.Constants;
 public class Model {
 
 	Piece[][] board;
+	Position position;
+
+	// Latest published copy of position, safe to read from any thread
+	volatile PositionSnapshot snapshot;
 	PieceArray whitePieces;
 	PieceArray blackPieces;
 	
@@ -30,6 +34,7 @@ public class Model {
 		gameTree = new GameTree();
 
 		board = new Piece[8][8];
+		position = new Position();
 
 		
 		// Easy way to set up nonstandard positions for testing.
@@ -39,11 +44,18 @@ public class Model {
 			initializeBoard();
 		
 		populateLists();
+		position.loadFromBoard(board, true);
+		publishSnapshot();
 	}
 
 	/**
 	 * Copy constructor.
 	 * 
+	 * <p>
+	 * The piece lists of the copy still point at the original Piece objects,
+	 * so the copy must not be handed to another thread. Use getSnapshot for
+	 * that.
+	 * 
 	 * @param modelIn
 	 */
 	public Model(Model modelIn) {
@@ -58,6 +70,8 @@ public class Model {
 		this.whitePieces = new PieceArray(modelIn.getWhitePieces());
 		this.blackPieces = new PieceArray(modelIn.getBlackPieces());
 		this.moveList = new ArrayList<Move>(modelIn.getMoveList());
+		this.position = new Position(modelIn.getPosition());
+		this.snapshot = modelIn.getSnapshot();
 
 	}
 
@@ -72,6 +86,8 @@ public class Model {
 
 		initializeBoard();
 		populateLists();
+		position.loadFromBoard(board, true);
+		publishSnapshot();
 	}
 
 	/**
@@ -208,6 +224,38 @@ public class Model {
 
 	public void setBoard(Piece[][] board) {
 		this.board = board;
+		position.loadFromBoard(board, moveList.size() % 2 == 0);
+		position.setPlyCount(moveList.size());
+		publishSnapshot();
+	}
+
+	/**
+	 * Returns the bitboard mirror of the board. BoardController keeps it in
+	 * sync with every write to the Piece[][] board.
+	 * 
+	 * @return
+	 */
+	public Position getPosition() {
+		return position;
+	}
+
+	/**
+	 * Takes a snapshot of the current position and makes it the one returned
+	 * by getSnapshot. Call this after every change to the game position.
+	 */
+	public void publishSnapshot() {
+		snapshot = position.snapshot();
+	}
+
+	/**
+	 * Returns the snapshot of the game position taken after the last move.
+	 * Unlike the board and the piece lists, it can safely be handed to
+	 * other threads.
+	 * 
+	 * @return
+	 */
+	public PositionSnapshot getSnapshot() {
+		return snapshot;
 	}
 
 	public ArrayList<Move> getMoveList() {
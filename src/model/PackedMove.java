@@ -0,0 +1,171 @@
+package model;
+
+import utils.Utils;
+
+/**
+ * Static helpers for moves packed into a single int. The search and move
+ * generator pass these around in preallocated int arrays instead of creating
+ * a Move object for every candidate. Move objects are only built when a move
+ * crosses over to the GUI/Controller side.
+ *
+ * <pre>
+ * bits  0-5   from square
+ * bits  6-11  to square
+ * bits 12-15  piece code of the moving piece
+ * bits 16-19  piece code of the captured piece (15 if none)
+ * bits 20-23  piece type promoted to (0 if not a promotion)
+ * bits 24-26  flags
+ * </pre>
+ */
+public class PackedMove {
+
+	// Flags
+	public final static int FLAG_NONE = 0;
+	public final static int FLAG_DOUBLE_PUSH = 1;
+	public final static int FLAG_EN_PASSANT = 2;
+	public final static int FLAG_CASTLE = 3;
+
+	// Not a legal move, since from and to would be the same square
+	public final static int NO_MOVE = 0;
+
+	private final static int NO_CAPTURE = 15;
+
+	/**
+	 * Packs the parts of a move into an int. <code>captured</code> is a piece
+	 * code or Position.EMPTY, <code>promotion</code> is a piece type or 0.
+	 *
+	 * @param from
+	 * @param to
+	 * @param piece
+	 * @param captured
+	 * @param promotion
+	 * @param flags
+	 * @return
+	 */
+	public static int encode(int from, int to, int piece, int captured,
+			int promotion, int flags) {
+		return from | (to << 6) | (piece << 12)
+				| ((captured & NO_CAPTURE) << 16) | (promotion << 20)
+				| (flags << 24);
+	}
+
+	public static int getFrom(int move) {
+		return move & 63;
+	}
+
+	public static int getTo(int move) {
+		return (move >>> 6) & 63;
+	}
+
+	public static int getPiece(int move) {
+		return (move >>> 12) & 15;
+	}
+
+	/**
+	 * Returns the piece code of the captured piece, or Position.EMPTY
+	 *
+	 * @param move
+	 * @return
+	 */
+	public static int getCaptured(int move) {
+		int captured = (move >>> 16) & 15;
+		return captured == NO_CAPTURE ? Position.EMPTY : captured;
+	}
+
+	public static int getPromotion(int move) {
+		return (move >>> 20) & 15;
+	}
+
+	public static int getFlags(int move) {
+		return (move >>> 24) & 7;
+	}
+
+	public static boolean isCapture(int move) {
+		return ((move >>> 16) & 15) != NO_CAPTURE;
+	}
+
+	public static boolean isPromotion(int move) {
+		return getPromotion(move) != 0;
+	}
+
+	/**
+	 * Builds the Move object the GUI and Controller work with. The piece is
+	 * looked up on the Piece[][] board, so this has to be called before the
+	 * move is made there.
+	 *
+	 * @param move
+	 * @param board
+	 * @return
+	 */
+	public static Move toMove(int move, Piece[][] board) {
+		int from = getFrom(move);
+		int to = getTo(move);
+		Piece piece = board[Position.rowOf(from)][Position.colOf(from)];
+		Move result = new Move(piece, Position.rowOf(from),
+				Position.colOf(from), Position.rowOf(to), Position.colOf(to));
+		if (isPromotion(move))
+			result.setPromotePiece(Position.charFromType(getPromotion(move)));
+		return result;
+	}
+
+	/**
+	 * Packs a Move from the GUI/Controller side so it can be played on
+	 * <code>position</code>, which must hold the pieces the move was made
+	 * for. A promotion with no piece chosen yet is packed as a queen
+	 * promotion.
+	 *
+	 * @param move
+	 * @param position
+	 * @return
+	 */
+	public static int fromMove(Move move, Position position) {
+		int from = Position.square(move.getStartRow(), move.getStartCol());
+		int to = Position.square(move.getEndRow(), move.getEndCol());
+		int piece = position.pieceAt(from);
+		int captured = position.pieceAt(to);
+		int type = Position.typeOf(piece);
+		int promotion = 0;
+		int flags = FLAG_NONE;
+
+		if (type == Position.PAWN) {
+			int deltaRow = move.getEndRow() - move.getStartRow();
+			if (deltaRow == 2 || deltaRow == -2)
+				flags = FLAG_DOUBLE_PUSH;
+			else if (move.getStartCol() != move.getEndCol()
+					&& captured == Position.EMPTY) {
+				flags = FLAG_EN_PASSANT;
+				captured = Position.pieceCode(Position.PAWN,
+						Position.colorOf(piece) ^ 1);
+			}
+
+			if (move.getEndRow() == 0 || move.getEndRow() == 7) {
+				if (move.getPromotePiece() != Character.UNASSIGNED)
+					promotion = Position.typeFromChar(move.getPromotePiece());
+				else
+					promotion = Position.QUEEN;
+			}
+		} else if (type == Position.KING
+				&& Math.abs(move.getEndCol() - move.getStartCol()) == 2)
+			flags = FLAG_CASTLE;
+
+		return encode(from, to, piece, captured, promotion, flags);
+	}
+
+	/**
+	 * Returns the move in coordinate notation, e.g. e2e4 or e7e8q
+	 *
+	 * @param move
+	 * @return
+	 */
+	public static String toString(int move) {
+		int from = getFrom(move);
+		int to = getTo(move);
+		String result = "" + Utils.getAlgebraicCharacterFromCol(Position.colOf(from))
+				+ (Position.rowOf(from) + 1)
+				+ Utils.getAlgebraicCharacterFromCol(Position.colOf(to))
+				+ (Position.rowOf(to) + 1);
+		if (isPromotion(move))
+			result += Position.charFromType(getPromotion(move));
+		return result;
+	}
+}
@@ -0,0 +1,1233 @@
+package model;
+
+import java.util.Arrays;
+
+import utils.Bitboards;
+import utils.Constants;
+import utils.Constants.GameStatus;
+
+/**
+ * Bitboard representation of a chess position. Each of the twelve piece kinds
+ * (six types for each color) has its own 64 bit board, and each side has an
+ * occupancy board. A mailbox array mirrors the bitboards so the piece on a
+ * single square can be read without scanning all twelve boards.
+ *
+ * <p>
+ * Squares are numbered from a1 = 0 to h8 = 63, so that square = row * 8 + col.
+ * This lines up with the (row,col) coordinates of the Piece[][] board in
+ * Model.
+ */
+public class Position {
+
+	// Colors
+	public final static int WHITE = 0;
+	public final static int BLACK = 1;
+
+	// Piece types
+	public final static int PAWN = 0;
+	public final static int KNIGHT = 1;
+	public final static int BISHOP = 2;
+	public final static int ROOK = 3;
+	public final static int QUEEN = 4;
+	public final static int KING = 5;
+
+	// Mailbox value of an empty square
+	public final static int EMPTY = -1;
+
+	public final static int NUM_PIECE_CODES = 12;
+
+	// Castling rights bits
+	public final static int WHITE_KINGSIDE = 1;
+	public final static int WHITE_QUEENSIDE = 2;
+	public final static int BLACK_KINGSIDE = 4;
+	public final static int BLACK_QUEENSIDE = 8;
+	public final static int ALL_CASTLING = 15;
+
+	// En passant square value when no en passant capture is possible
+	public final static int NO_SQUARE = -1;
+
+	// Maximum number of nested make/unmake calls
+	public final static int MAX_PLY = 256;
+
+	// a1, c1, ... the squares of the same color as a1
+	private final static long darkSquares = 0xAA55AA55AA55AA55L;
+
+	// Castling rights that survive a move touching each square. Moving the
+	// king or a rook off its home square, or capturing a rook on its home
+	// square, clears the matching rights.
+	private final static int[] castlingMask = new int[64];
+	static {
+		for (int sq = 0; sq < 64; sq++)
+			castlingMask[sq] = ALL_CASTLING;
+		castlingMask[0] &= ~WHITE_QUEENSIDE;
+		castlingMask[7] &= ~WHITE_KINGSIDE;
+		castlingMask[4] &= ~(WHITE_KINGSIDE | WHITE_QUEENSIDE);
+		castlingMask[56] &= ~BLACK_QUEENSIDE;
+		castlingMask[63] &= ~BLACK_KINGSIDE;
+		castlingMask[60] &= ~(BLACK_KINGSIDE | BLACK_QUEENSIDE);
+	}
+
+	// Material weight of each piece code, white positive and black negative
+	private final static int[] materialWeights = new int[NUM_PIECE_CODES];
+
+	// Game phase weight of each piece type. A board with every minor and
+	// major piece on it adds up to MAX_PHASE.
+	private final static int[] phaseWeights = { 0, 1, 1, 2, 4, 0 };
+	public final static int MAX_PHASE = 24;
+	static {
+		int[] weights = { Constants.getPawnweight(),
+				Constants.getKnightweight(), Constants.getBishopweight(),
+				Constants.getRookweight(), Constants.getQueenweight(),
+				Constants.getKingweight() };
+		for (int type = PAWN; type <= KING; type++) {
+			materialWeights[pieceCode(type, WHITE)] = weights[type];
+			materialWeights[pieceCode(type, BLACK)] = -weights[type];
+		}
+	}
+
+	long[] pieceBoards;
+	long[] occupancy;
+	long occupied;
+	int[] mailbox;
+
+	// Kept up to date by putPiece and removePiece, so every way a piece
+	// comes or goes (captures, promotions, en passant) is counted
+	int[] pieceCounts;
+	int materialBalance;
+	int phase;
+
+	int sideToMove;
+	int castlingRights;
+	int enPassantSquare;
+	long key;
+
+	// Number of half moves played since the start of the game
+	int plyCount;
+
+	// Half moves since the last capture or pawn move
+	int halfmoveClock;
+
+	// One record per nested move, filled in place by saveState
+	UndoRecord[] undoStack;
+	int undoIndex;
+
+	// Hashes of every earlier position of the game and of the search below
+	// it, oldest first. Search moves push in saveState and pop in
+	// restoreState, game moves push with recordGameMove. Grows as needed.
+	long[] keyHistory;
+	int historyLength;
+
+	// Status computed by gameStatus, valid while the hash and the history
+	// length are still the ones it was computed for
+	GameStatus cachedStatus;
+	long statusKey;
+	int statusHistoryLength;
+
+	// Squares attacked by each color, built on demand by getAttackedSquares.
+	// Bit (1 << color) of attackMapsValid is set while attackMaps[color]
+	// matches the board. Every piece that comes or goes, in makeMove,
+	// unmakeMove or while setting up a board, clears it.
+	long[] attackMaps;
+	int attackMapsValid;
+
+	// Times an attack map was built, and attack queries a map answered
+	// without being rebuilt
+	long attackMapBuilds;
+	long attackMapHits;
+
+	// Per-square attackers updated by putPiece and removePiece, or null
+	// unless Constants.getAttackMode is INCREMENTAL when the position is made
+	AttackTable attackTable;
+
+	/**
+	 * Constructor. Creates an empty board.
+	 */
+	public Position() {
+		pieceBoards = new long[NUM_PIECE_CODES];
+		occupancy = new long[2];
+		mailbox = new int[64];
+		pieceCounts = new int[NUM_PIECE_CODES];
+		attackMaps = new long[2];
+		if (Constants.getAttackMode() == Constants.AttackMode.INCREMENTAL)
+			attackTable = new AttackTable();
+		undoStack = new UndoRecord[MAX_PLY];
+		for (int i = 0; i < MAX_PLY; i++)
+			undoStack[i] = new UndoRecord();
+		keyHistory = new long[2 * MAX_PLY];
+		clear();
+	}
+
+	/**
+	 * Copy constructor.
+	 *
+	 * @param other
+	 */
+	public Position(Position other) {
+		pieceBoards = other.pieceBoards.clone();
+		occupancy = other.occupancy.clone();
+		occupied = other.occupied;
+		mailbox = other.mailbox.clone();
+		pieceCounts = other.pieceCounts.clone();
+		attackMaps = other.attackMaps.clone();
+		attackMapsValid = other.attackMapsValid;
+		if (other.attackTable != null) {
+			attackTable = new AttackTable();
+			attackTable.copyFrom(other.attackTable);
+		}
+		materialBalance = other.materialBalance;
+		phase = other.phase;
+		sideToMove = other.sideToMove;
+		castlingRights = other.castlingRights;
+		enPassantSquare = other.enPassantSquare;
+		key = other.key;
+		plyCount = other.plyCount;
+		halfmoveClock = other.halfmoveClock;
+		undoStack = new UndoRecord[MAX_PLY];
+		for (int i = 0; i < MAX_PLY; i++) {
+			undoStack[i] = new UndoRecord();
+			undoStack[i].copyFrom(other.undoStack[i]);
+		}
+		undoIndex = other.undoIndex;
+		keyHistory = other.keyHistory.clone();
+		historyLength = other.historyLength;
+	}
+
+	/**
+	 * Creates the position described by a FEN string.
+	 *
+	 * @param fen
+	 */
+	public Position(String fen) {
+		this();
+		loadFromFen(fen);
+	}
+
+	/**
+	 * Inflates a snapshot into a new position. The undo stack starts out
+	 * empty.
+	 *
+	 * @param snapshot
+	 */
+	public Position(PositionSnapshot snapshot) {
+		this();
+		long pieces = snapshot.getOccupied();
+		int index = 0;
+		while (pieces != 0) {
+			int sq = Long.numberOfTrailingZeros(pieces);
+			pieces &= pieces - 1;
+			putPiece(sq, snapshot.pieceCodeAt(index++));
+		}
+		setSideToMove(snapshot.getSideToMove());
+		setCastlingRights(snapshot.getCastlingRights());
+		setEnPassantSquare(snapshot.getEnPassantSquare());
+		halfmoveClock = snapshot.getHalfmoveClock();
+		plyCount = snapshot.getPlyCount();
+		long[] history = snapshot.getHistory();
+		System.arraycopy(history, 0, keyHistory, 0, history.length);
+		historyLength = history.length;
+	}
+
+	/**
+	 * Returns an immutable snapshot of this position that can be handed to
+	 * another thread.
+	 *
+	 * @return
+	 */
+	public PositionSnapshot snapshot() {
+		return new PositionSnapshot(this);
+	}
+
+	/**
+	 * Removes every piece from the board.
+	 */
+	public void clear() {
+		for (int i = 0; i < NUM_PIECE_CODES; i++) {
+			pieceBoards[i] = 0L;
+			pieceCounts[i] = 0;
+		}
+		materialBalance = 0;
+		phase = 0;
+		occupancy[WHITE] = 0L;
+		occupancy[BLACK] = 0L;
+		occupied = 0L;
+		attackMapsValid = 0;
+		if (attackTable != null)
+			attackTable.clear();
+		for (int sq = 0; sq < 64; sq++)
+			mailbox[sq] = EMPTY;
+		sideToMove = WHITE;
+		castlingRights = 0;
+		enPassantSquare = NO_SQUARE;
+		key = 0L;
+		plyCount = 0;
+		halfmoveClock = 0;
+		undoIndex = 0;
+		historyLength = 0;
+		cachedStatus = null;
+	}
+
+	/**
+	 * Rebuilds the bitboards from the Piece[][] board used by the GUI. Castling
+	 * rights are derived from the hasMoved flags of the kings and rooks on
+	 * their home squares.
+	 *
+	 * @param board
+	 * @param isWhiteTurn
+	 */
+	public void loadFromBoard(Piece[][] board, boolean isWhiteTurn) {
+		clear();
+		for (int row = 0; row < 8; row++)
+			for (int col = 0; col < 8; col++)
+				if (board[row][col] != null)
+					putPiece(square(row, col), pieceCode(board[row][col]));
+
+		int rights = 0;
+		if (isUnmoved(board, 0, 4, Constants.getKingChar(), true)) {
+			if (isUnmoved(board, 0, 7, Constants.getRookChar(), true))
+				rights |= WHITE_KINGSIDE;
+			if (isUnmoved(board, 0, 0, Constants.getRookChar(), true))
+				rights |= WHITE_QUEENSIDE;
+		}
+		if (isUnmoved(board, 7, 4, Constants.getKingChar(), false)) {
+			if (isUnmoved(board, 7, 7, Constants.getRookChar(), false))
+				rights |= BLACK_KINGSIDE;
+			if (isUnmoved(board, 7, 0, Constants.getRookChar(), false))
+				rights |= BLACK_QUEENSIDE;
+		}
+		setCastlingRights(rights);
+		setSideToMove(isWhiteTurn ? WHITE : BLACK);
+	}
+
+	/**
+	 * Sets up the position described by the FEN string <code>fen</code>.
+	 * Castling rights, en passant square and both move counters are taken
+	 * from the string, so no move history is needed. The halfmove clock and
+	 * fullmove number may be left off.
+	 *
+	 * @param fen
+	 */
+	public void loadFromFen(String fen) {
+		String[] fields = fen.trim().split("\\s+");
+		if (fields.length < 4)
+			throw new IllegalArgumentException("Position.loadFromFen: expected at least 4 fields in '"
+					+ fen + "'");
+
+		clear();
+		int row = 7;
+		int col = 0;
+		for (int i = 0; i < fields[0].length(); i++) {
+			char c = fields[0].charAt(i);
+			if (c == '/') {
+				row--;
+				col = 0;
+			} else if (c >= '1' && c <= '8')
+				col += c - '0';
+			else {
+				if (row < 0 || col > 7 || "pnbrqk".indexOf(Character.toLowerCase(c)) < 0)
+					throw new IllegalArgumentException("Position.loadFromFen: bad piece placement '"
+							+ fields[0] + "'");
+				int color = Character.isUpperCase(c) ? WHITE : BLACK;
+				putPiece(square(row, col++),
+						pieceCode(typeFromChar(Character.toLowerCase(c)), color));
+			}
+		}
+
+		setSideToMove(fields[1].equals("b") ? BLACK : WHITE);
+
+		int rights = 0;
+		if (fields[2].indexOf('K') >= 0)
+			rights |= WHITE_KINGSIDE;
+		if (fields[2].indexOf('Q') >= 0)
+			rights |= WHITE_QUEENSIDE;
+		if (fields[2].indexOf('k') >= 0)
+			rights |= BLACK_KINGSIDE;
+		if (fields[2].indexOf('q') >= 0)
+			rights |= BLACK_QUEENSIDE;
+		setCastlingRights(rights);
+
+		if (!fields[3].equals("-"))
+			setEnPassantSquare(square(fields[3].charAt(1) - '1',
+					fields[3].charAt(0) - 'a'));
+
+		if (fields.length > 4)
+			halfmoveClock = Integer.parseInt(fields[4]);
+		if (fields.length > 5)
+			plyCount = 2 * (Integer.parseInt(fields[5]) - 1) + sideToMove;
+	}
+
+	/**
+	 * Returns the position as a FEN string.
+	 *
+	 * @return
+	 */
+	public String toFen() {
+		StringBuilder result = new StringBuilder();
+		for (int row = 7; row >= 0; row--) {
+			int empty = 0;
+			for (int col = 0; col < 8; col++) {
+				int code = mailbox[square(row, col)];
+				if (code == EMPTY) {
+					empty++;
+					continue;
+				}
+				if (empty > 0)
+					result.append(empty);
+				empty = 0;
+				char c = charFromType(typeOf(code));
+				result.append(colorOf(code) == WHITE ? Character.toUpperCase(c) : c);
+			}
+			if (empty > 0)
+				result.append(empty);
+			if (row > 0)
+				result.append('/');
+		}
+
+		result.append(sideToMove == WHITE ? " w " : " b ");
+		if (castlingRights == 0)
+			result.append('-');
+		if ((castlingRights & WHITE_KINGSIDE) != 0)
+			result.append('K');
+		if ((castlingRights & WHITE_QUEENSIDE) != 0)
+			result.append('Q');
+		if ((castlingRights & BLACK_KINGSIDE) != 0)
+			result.append('k');
+		if ((castlingRights & BLACK_QUEENSIDE) != 0)
+			result.append('q');
+
+		result.append(' ');
+		if (enPassantSquare == NO_SQUARE)
+			result.append('-');
+		else
+			result.append((char) ('a' + colOf(enPassantSquare))).append(
+					rowOf(enPassantSquare) + 1);
+		result.append(' ').append(halfmoveClock).append(' ')
+				.append(plyCount / 2 + 1);
+		return result.toString();
+	}
+
+	private static boolean isUnmoved(Piece[][] board, int row, int col,
+			char type, boolean isWhite) {
+		Piece piece = board[row][col];
+		return piece != null && piece.getType() == type
+				&& piece.isWhite() == isWhite && !piece.isHasMoved();
+	}
+
+	/**
+	 * Places the piece designated by <code>code</code> on an empty square.
+	 *
+	 * @param sq
+	 * @param code
+	 */
+	public void putPiece(int sq, int code) {
+		long bit = 1L << sq;
+		pieceBoards[code] |= bit;
+		occupancy[colorOf(code)] |= bit;
+		occupied |= bit;
+		mailbox[sq] = code;
+		key ^= Zobrist.pieceKeys[code][sq];
+		attackMapsValid = 0;
+		pieceCounts[code]++;
+		materialBalance += materialWeights[code];
+		phase += phaseWeights[typeOf(code)];
+		if (attackTable != null)
+			attackTable.pieceAdded(this, sq);
+	}
+
+	/**
+	 * Removes whatever piece is on square <code>sq</code> and returns its
+	 * code, or EMPTY if there was nothing there.
+	 *
+	 * @param sq
+	 * @return
+	 */
+	public int removePiece(int sq) {
+		int code = mailbox[sq];
+		if (code != EMPTY) {
+			long bit = ~(1L << sq);
+			pieceBoards[code] &= bit;
+			occupancy[colorOf(code)] &= bit;
+			occupied &= bit;
+			mailbox[sq] = EMPTY;
+			key ^= Zobrist.pieceKeys[code][sq];
+			attackMapsValid = 0;
+			pieceCounts[code]--;
+			materialBalance -= materialWeights[code];
+			phase -= phaseWeights[typeOf(code)];
+			if (attackTable != null)
+				attackTable.pieceRemoved(this, sq);
+		}
+		return code;
+	}
+
+	/**
+	 * Adapter for the Piece based board. Replaces whatever is on (row,col)
+	 * with <code>piece</code>, or empties the square if piece is null.
+	 *
+	 * @param row
+	 * @param col
+	 * @param piece
+	 */
+	public void setPiece(int row, int col, Piece piece) {
+		int sq = square(row, col);
+		removePiece(sq);
+		if (piece != null)
+			putPiece(sq, pieceCode(piece));
+	}
+
+	/**
+	 * Fills the next undo record with the castling rights, en passant square,
+	 * hash and halfmove clock, plus the code of the piece the move is about to
+	 * capture, so restoreState can put them back when the move is taken back.
+	 *
+	 * @param captured
+	 *            piece code of the captured piece, or EMPTY
+	 */
+	public void saveState(int captured) {
+		pushHistory();
+		UndoRecord record = undoStack[undoIndex++];
+		record.captured = captured;
+		record.castlingRights = castlingRights;
+		record.enPassantSquare = enPassantSquare;
+		record.key = key;
+		record.halfmoveClock = halfmoveClock;
+	}
+
+	/**
+	 * Pops the record filled by the matching saveState call and returns it.
+	 * The board must already be back to how it was, since the saved hash
+	 * includes the pieces.
+	 *
+	 * @return
+	 */
+	public UndoRecord restoreState() {
+		UndoRecord record = undoStack[--undoIndex];
+		historyLength--;
+		castlingRights = record.castlingRights;
+		enPassantSquare = record.enPassantSquare;
+		key = record.key;
+		halfmoveClock = record.halfmoveClock;
+
+		// Every move flips the side to move, and the hash is already restored
+		sideToMove ^= 1;
+
+		// Every saved state belongs to one move counted by applyMoveState
+		plyCount--;
+		return record;
+	}
+
+	/**
+	 * Updates everything but the piece placement after a move from square
+	 * <code>from</code> to square <code>to</code>: castling rights lost by
+	 * touching a king or rook square, the en passant target of a double pawn
+	 * push, the halfmove clock and the side to move.
+	 *
+	 * @param from
+	 * @param to
+	 * @param isDoublePawnPush
+	 * @param isPawnMoveOrCapture
+	 *            true if the move resets the halfmove clock
+	 */
+	public void applyMoveState(int from, int to, boolean isDoublePawnPush,
+			boolean isPawnMoveOrCapture) {
+		setCastlingRights(castlingRights & castlingMask[from]
+				& castlingMask[to]);
+		setEnPassantSquare(isDoublePawnPush ? (from + to) >>> 1 : NO_SQUARE);
+		setSideToMove(sideToMove ^ 1);
+		if (isPawnMoveOrCapture)
+			halfmoveClock = 0;
+		else
+			halfmoveClock++;
+		plyCount++;
+	}
+
+	/**
+	 * Plays a packed move (see PackedMove) on the bitboards. The move must
+	 * have been generated for this position. Undo it with unmakeMove.
+	 *
+	 * @param move
+	 */
+	public void makeMove(int move) {
+		int from = PackedMove.getFrom(move);
+		int to = PackedMove.getTo(move);
+		int piece = PackedMove.getPiece(move);
+		int flags = PackedMove.getFlags(move);
+		int color = colorOf(piece);
+		int captured = PackedMove.getCaptured(move);
+
+		saveState(captured);
+
+		if (flags == PackedMove.FLAG_EN_PASSANT)
+			removePiece(enPassantVictimSquare(to, color));
+		else if (PackedMove.isCapture(move))
+			removePiece(to);
+
+		removePiece(from);
+		if (PackedMove.isPromotion(move))
+			putPiece(to, pieceCode(PackedMove.getPromotion(move), color));
+		else
+			putPiece(to, piece);
+
+		if (flags == PackedMove.FLAG_CASTLE) {
+			if (to > from)
+				putPiece(from + 1, removePiece(from + 3));
+			else
+				putPiece(from - 1, removePiece(from - 4));
+		}
+
+		applyMoveState(from, to, flags == PackedMove.FLAG_DOUBLE_PUSH,
+				typeOf(piece) == PAWN || captured != EMPTY);
+	}
+
+	/**
+	 * Takes back a move played with makeMove. Moves must be taken back in the
+	 * reverse order they were made. Nothing is searched or allocated, the
+	 * state comes straight off the undo stack.
+	 *
+	 * @param move
+	 */
+	public void unmakeMove(int move) {
+		int from = PackedMove.getFrom(move);
+		int to = PackedMove.getTo(move);
+		int piece = PackedMove.getPiece(move);
+		int flags = PackedMove.getFlags(move);
+		int captured = undoStack[undoIndex - 1].captured;
+
+		removePiece(to);
+		putPiece(from, piece);
+
+		if (flags == PackedMove.FLAG_CASTLE) {
+			if (to > from)
+				putPiece(from + 3, removePiece(from + 1));
+			else
+				putPiece(from - 4, removePiece(from - 1));
+		}
+
+		if (flags == PackedMove.FLAG_EN_PASSANT)
+			putPiece(enPassantVictimSquare(to, colorOf(piece)), captured);
+		else if (captured != EMPTY)
+			putPiece(to, captured);
+
+		restoreState();
+	}
+
+	/**
+	 * Returns the square of the pawn captured by an en passant capture landing
+	 * on <code>to</code>
+	 */
+	private static int enPassantVictimSquare(int to, int color) {
+		return color == WHITE ? to - 8 : to + 8;
+	}
+
+	/**
+	 * Adds the current hash to the repetition history. Call this before a
+	 * game move that is played on the board without saveState, since such a
+	 * move is never taken back.
+	 */
+	public void recordGameMove() {
+		pushHistory();
+	}
+
+	private void pushHistory() {
+		if (historyLength == keyHistory.length)
+			keyHistory = Arrays.copyOf(keyHistory, 2 * keyHistory.length);
+		keyHistory[historyLength++] = key;
+	}
+
+	/**
+	 * Returns true if the current position occurred before, in the game or
+	 * in the search leading here. Only positions with the same side to move
+	 * since the last capture or pawn move can repeat, so the scan stops
+	 * there.
+	 *
+	 * @return
+	 */
+	public boolean isRepetition() {
+		int oldest = Math.max(0, historyLength - halfmoveClock);
+		for (int i = historyLength - 2; i >= oldest; i -= 2)
+			if (keyHistory[i] == key)
+				return true;
+		return false;
+	}
+
+	/**
+	 * Returns how many times the current position occurred before. Two
+	 * earlier occurrences make a threefold repetition.
+	 *
+	 * @return
+	 */
+	public int countRepetitions() {
+		int result = 0;
+		int oldest = Math.max(0, historyLength - halfmoveClock);
+		for (int i = historyLength - 2; i >= oldest; i -= 2)
+			if (keyHistory[i] == key)
+				result++;
+		return result;
+	}
+
+	/**
+	 * Returns the status of the game in this position, given the number of
+	 * legal moves of the side to move that the caller generated or counted
+	 * anyway. No moves is checkmate or stalemate. A position that occurred
+	 * twice before, fifty moves without a capture or pawn move, or too little
+	 * material to mate is a draw. The status is kept until the position changes,
+	 * see getCachedGameStatus.
+	 *
+	 * @param numLegalMoves
+	 * @return
+	 */
+	public GameStatus gameStatus(int numLegalMoves) {
+		GameStatus result;
+		if (numLegalMoves == 0)
+			result = isInCheck(sideToMove) ? GameStatus.CHECKMATE
+					: GameStatus.STALEMATE;
+		else if (countRepetitions() >= 2 || isFiftyMoveDraw()
+				|| isInsufficientMaterial())
+			result = GameStatus.DRAW;
+		else
+			result = GameStatus.ONGOING;
+
+		cachedStatus = result;
+		statusKey = key;
+		statusHistoryLength = historyLength;
+		return result;
+	}
+
+	/**
+	 * Returns true if fifty moves by each side were played without a capture
+	 * or pawn move.
+	 *
+	 * @return
+	 */
+	public boolean isFiftyMoveDraw() {
+		return halfmoveClock >= 100;
+	}
+
+	/**
+	 * Returns true if neither side has the material to checkmate: bare kings,
+	 * a single knight or bishop, or only bishops that all stand on squares of
+	 * one color, whoever they belong to.
+	 *
+	 * @return
+	 */
+	public boolean isInsufficientMaterial() {
+		if ((pieceBoards[PAWN] | pieceBoards[6 + PAWN] | pieceBoards[ROOK]
+				| pieceBoards[6 + ROOK] | pieceBoards[QUEEN] | pieceBoards[6 + QUEEN]) != 0)
+			return false;
+
+		long knights = pieceBoards[KNIGHT] | pieceBoards[6 + KNIGHT];
+		long bishops = pieceBoards[BISHOP] | pieceBoards[6 + BISHOP];
+		long minors = knights | bishops;
+		if ((minors & (minors - 1)) == 0)
+			return true;
+		return knights == 0
+				&& ((bishops & darkSquares) == 0 || (bishops & ~darkSquares) == 0);
+	}
+
+	/**
+	 * Returns the status last computed by gameStatus if the position hasn't
+	 * changed since, or null.
+	 *
+	 * @return
+	 */
+	public GameStatus getCachedGameStatus() {
+		if (cachedStatus != null && statusKey == key
+				&& statusHistoryLength == historyLength)
+			return cachedStatus;
+		return null;
+	}
+
+	/**
+	 * Returns a copy of the hashes that can still repeat: those since the
+	 * last capture or pawn move, oldest first.
+	 *
+	 * @return
+	 */
+	long[] getRepeatableHistory() {
+		int oldest = Math.max(0, historyLength - halfmoveClock);
+		return Arrays.copyOfRange(keyHistory, oldest, historyLength);
+	}
+
+	/**
+	 * Returns true if side <code>color</code> may castle on the given side
+	 * right now: it still has the castling right, the squares between king
+	 * and rook are empty, and the king does not start in, pass through or
+	 * land on an attacked square. The castling right already implies that
+	 * the king and rook are on their home squares.
+	 *
+	 * @param color
+	 * @param isKingside
+	 * @return
+	 */
+	public boolean canCastle(int color, boolean isKingside) {
+		int right;
+		if (color == WHITE)
+			right = isKingside ? WHITE_KINGSIDE : WHITE_QUEENSIDE;
+		else
+			right = isKingside ? BLACK_KINGSIDE : BLACK_QUEENSIDE;
+		if ((castlingRights & right) == 0)
+			return false;
+
+		int kingSquare = color == WHITE ? 4 : 60;
+		int enemy = color ^ 1;
+		int step = isKingside ? 1 : -1;
+
+		// Two empty squares towards the h rook, three towards the a rook
+		long between = isKingside ? 3L << (kingSquare + 1)
+				: 7L << (kingSquare - 3);
+		if ((occupied & between) != 0)
+			return false;
+
+		// The king's square and the two it steps over or lands on. Building a
+		// whole attack map costs more than three lookups, so one is only
+		// used if something else already built it for this board.
+		if ((attackMapsValid & 1 << enemy) != 0) {
+			attackMapHits++;
+			long path = isKingside ? 7L << kingSquare : 7L << (kingSquare - 2);
+			return (attackMaps[enemy] & path) == 0;
+		}
+		return !isSquareAttacked(kingSquare, enemy)
+				&& !isSquareAttacked(kingSquare + step, enemy)
+				&& !isSquareAttacked(kingSquare + 2 * step, enemy);
+	}
+
+	/**
+	 * Returns the square of the king of color <code>color</code>, or
+	 * NO_SQUARE if it is not on the board.
+	 *
+	 * @param color
+	 * @return
+	 */
+	public int getKingSquare(int color) {
+		long king = pieceBoards[color * 6 + KING];
+		return king == 0 ? NO_SQUARE : Long.numberOfTrailingZeros(king);
+	}
+
+	/**
+	 * Returns true if the king of color <code>color</code> is attacked.
+	 *
+	 * @param color
+	 * @return
+	 */
+	public boolean isInCheck(int color) {
+		int kingSquare = getKingSquare(color);
+		return kingSquare != NO_SQUARE
+				&& isSquareAttacked(kingSquare, color ^ 1);
+	}
+
+	/**
+	 * Recomputes the Zobrist hash from scratch.
+	 *
+	 * @return
+	 */
+	public long computeKey() {
+		long result = 0L;
+		long pieces = occupied;
+		while (pieces != 0) {
+			int sq = Long.numberOfTrailingZeros(pieces);
+			pieces &= pieces - 1;
+			result ^= Zobrist.pieceKeys[mailbox[sq]][sq];
+		}
+		if (sideToMove == BLACK)
+			result ^= Zobrist.sideKey;
+		result ^= Zobrist.castlingKeys[castlingRights];
+		if (enPassantSquare != NO_SQUARE)
+			result ^= Zobrist.enPassantKeys[colOf(enPassantSquare)];
+		return result;
+	}
+
+	/**
+	 * Debug check. Returns true if the incrementally updated hash matches a
+	 * hash computed from scratch.
+	 *
+	 * @return
+	 */
+	public boolean verifyKey() {
+		return key == computeKey();
+	}
+
+	/**
+	 * Returns true if any piece of color <code>color</code> attacks square
+	 * <code>sq</code>. Pawns attack diagonally whether or not the target square
+	 * is occupied.
+	 *
+	 * @param sq
+	 * @param color
+	 * @return
+	 */
+	public boolean isSquareAttacked(int sq, int color) {
+		if ((attackMapsValid & 1 << color) != 0) {
+			attackMapHits++;
+			return (attackMaps[color] & 1L << sq) != 0;
+		}
+		if (attackTable != null)
+			return (attackTable.attackersTo[sq] & occupancy[color]) != 0;
+
+		int base = color * 6;
+
+		// A piece of color attacks sq exactly when the same kind of piece
+		// standing on sq would attack it. Pawns are the exception, their
+		// attacks are looked up for the other color.
+		if ((Bitboards.pawnAttacks(sq, color ^ 1) & pieceBoards[base + PAWN]) != 0
+				|| (Bitboards.knightAttacks(sq) & pieceBoards[base + KNIGHT]) != 0
+				|| (Bitboards.kingAttacks(sq) & pieceBoards[base + KING]) != 0)
+			return true;
+
+		long queens = pieceBoards[base + QUEEN];
+		long straightSliders = pieceBoards[base + ROOK] | queens;
+		if (straightSliders != 0
+				&& (Bitboards.rookAttacks(sq, occupied) & straightSliders) != 0)
+			return true;
+		long diagonalSliders = pieceBoards[base + BISHOP] | queens;
+		return diagonalSliders != 0
+				&& (Bitboards.bishopAttacks(sq, occupied) & diagonalSliders) != 0;
+	}
+
+	/**
+	 * Returns every square attacked by a piece of color <code>color</code>.
+	 * The map is built the first time it is asked for and kept until a piece
+	 * comes or goes, so checking castling squares, checks and checkmate on
+	 * one position builds it once. isSquareAttacked answers from it as well
+	 * while it is current.
+	 *
+	 * @param color
+	 * @return
+	 */
+	public long getAttackedSquares(int color) {
+		int bit = 1 << color;
+		if ((attackMapsValid & bit) != 0) {
+			attackMapHits++;
+			return attackMaps[color];
+		}
+
+		attackMapBuilds++;
+		long result = 0L;
+		if (attackTable != null) {
+			long pieces = occupancy[color];
+			while (pieces != 0) {
+				int sq = Long.numberOfTrailingZeros(pieces);
+				pieces &= pieces - 1;
+				result |= attackTable.attacksFrom[sq];
+			}
+			attackMaps[color] = result;
+			attackMapsValid |= bit;
+			return result;
+		}
+
+		int base = color * 6;
+		long pieces = pieceBoards[base + PAWN];
+		while (pieces != 0) {
+			int sq = Long.numberOfTrailingZeros(pieces);
+			pieces &= pieces - 1;
+			result |= Bitboards.pawnAttacks(sq, color);
+		}
+		pieces = pieceBoards[base + KNIGHT];
+		while (pieces != 0) {
+			int sq = Long.numberOfTrailingZeros(pieces);
+			pieces &= pieces - 1;
+			result |= Bitboards.knightAttacks(sq);
+		}
+		pieces = pieceBoards[base + BISHOP] | pieceBoards[base + QUEEN];
+		while (pieces != 0) {
+			int sq = Long.numberOfTrailingZeros(pieces);
+			pieces &= pieces - 1;
+			result |= Bitboards.bishopAttacks(sq, occupied);
+		}
+		pieces = pieceBoards[base + ROOK] | pieceBoards[base + QUEEN];
+		while (pieces != 0) {
+			int sq = Long.numberOfTrailingZeros(pieces);
+			pieces &= pieces - 1;
+			result |= Bitboards.rookAttacks(sq, occupied);
+		}
+		pieces = pieceBoards[base + KING];
+		if (pieces != 0)
+			result |= Bitboards.kingAttacks(Long.numberOfTrailingZeros(pieces));
+
+		attackMaps[color] = result;
+		attackMapsValid |= bit;
+		return result;
+	}
+
+	/**
+	 * Returns how many times an attack map was built, and how many attack
+	 * queries were answered by a map that was already built, which is the
+	 * number of recomputations avoided.
+	 *
+	 * @return
+	 */
+	public String getAttackMapStats() {
+		return "Attack maps: " + attackMapBuilds + " built, " + attackMapHits
+				+ " queries answered without rebuilding";
+	}
+
+	public long getAttackMapBuilds() {
+		return attackMapBuilds;
+	}
+
+	public long getAttackMapHits() {
+		return attackMapHits;
+	}
+
+	public void resetAttackMapStats() {
+		attackMapBuilds = 0;
+		attackMapHits = 0;
+	}
+
+	/**
+	 * Returns the pieces of color <code>color</code> that attack square
+	 * <code>sq</code>. With an incremental attack table this is a single
+	 * lookup.
+	 *
+	 * @param sq
+	 * @param color
+	 * @return
+	 */
+	public long attackersOf(int sq, int color) {
+		if (attackTable != null)
+			return attackTable.attackersTo[sq] & occupancy[color];
+		return attackersOf(sq, color, occupied);
+	}
+
+	/**
+	 * Returns how many pieces of color <code>color</code> attack square
+	 * <code>sq</code>.
+	 *
+	 * @param sq
+	 * @param color
+	 * @return
+	 */
+	public int attackerCount(int sq, int color) {
+		return Long.bitCount(attackersOf(sq, color));
+	}
+
+	/**
+	 * Returns the incrementally updated attack table, or null if this
+	 * position computes attacks on demand.
+	 *
+	 * @return
+	 */
+	public AttackTable getAttackTable() {
+		return attackTable;
+	}
+
+	/**
+	 * Returns the pieces of color <code>color</code> that attack square
+	 * <code>sq</code> when the occupied squares are <code>occupied</code>.
+	 * Passing an occupancy without some piece lets sliders see through it.
+	 *
+	 * @param sq
+	 * @param color
+	 * @param occupied
+	 * @return
+	 */
+	public long attackersOf(int sq, int color, long occupied) {
+		int base = color * 6;
+		long queens = pieceBoards[base + QUEEN];
+		return (Bitboards.pawnAttacks(sq, color ^ 1) & pieceBoards[base + PAWN])
+				| (Bitboards.knightAttacks(sq) & pieceBoards[base + KNIGHT])
+				| (Bitboards.kingAttacks(sq) & pieceBoards[base + KING])
+				| (Bitboards.rookAttacks(sq, occupied) & (pieceBoards[base + ROOK] | queens))
+				| (Bitboards.bishopAttacks(sq, occupied) & (pieceBoards[base + BISHOP] | queens));
+	}
+
+	/**
+	 * Returns the square index of (row,col).
+	 *
+	 * @param row
+	 * @param col
+	 * @return
+	 */
+	public static int square(int row, int col) {
+		return (row << 3) | col;
+	}
+
+	public static int rowOf(int sq) {
+		return sq >>> 3;
+	}
+
+	public static int colOf(int sq) {
+		return sq & 7;
+	}
+
+	public static int pieceCode(int type, int color) {
+		return color * 6 + type;
+	}
+
+	public static int typeOf(int code) {
+		return code % 6;
+	}
+
+	public static int colorOf(int code) {
+		return code < 6 ? WHITE : BLACK;
+	}
+
+	/**
+	 * Returns the piece code for a Piece object from the GUI board.
+	 *
+	 * @param piece
+	 * @return
+	 */
+	public static int pieceCode(Piece piece) {
+		return pieceCode(typeFromChar(piece.getType()), piece.isWhite() ? WHITE
+				: BLACK);
+	}
+
+	/**
+	 * Converts the char piece abbreviations from Constants into a piece type.
+	 *
+	 * @param type
+	 * @return
+	 */
+	public static int typeFromChar(char type) {
+		int result;
+		if (type == Constants.getPawnChar())
+			result = PAWN;
+		else if (type == Constants.getKnightChar())
+			result = KNIGHT;
+		else if (type == Constants.getBishopChar())
+			result = BISHOP;
+		else if (type == Constants.getRookChar())
+			result = ROOK;
+		else if (type == Constants.getQueenChar())
+			result = QUEEN;
+		else
+			result = KING;
+		return result;
+	}
+
+	/**
+	 * Converts a piece type back into the char abbreviation used by Piece.
+	 *
+	 * @param type
+	 * @return
+	 */
+	public static char charFromType(int type) {
+		char result;
+		if (type == PAWN)
+			result = Constants.getPawnChar();
+		else if (type == KNIGHT)
+			result = Constants.getKnightChar();
+		else if (type == BISHOP)
+			result = Constants.getBishopChar();
+		else if (type == ROOK)
+			result = Constants.getRookChar();
+		else if (type == QUEEN)
+			result = Constants.getQueenChar();
+		else
+			result = Constants.getKingChar();
+		return result;
+	}
+
+	public int pieceAt(int sq) {
+		return mailbox[sq];
+	}
+
+	public boolean isEmpty(int sq) {
+		return (occupied & (1L << sq)) == 0;
+	}
+
+	public boolean isColor(int sq, int color) {
+		return (occupancy[color] & (1L << sq)) != 0;
+	}
+
+	public long getPieceBoard(int code) {
+		return pieceBoards[code];
+	}
+
+	public long getPieceBoard(int type, int color) {
+		return pieceBoards[color * 6 + type];
+	}
+
+	public int getPieceCount(int type, int color) {
+		return pieceCounts[color * 6 + type];
+	}
+
+	/**
+	 * Returns the material of white minus the material of black, using the
+	 * piece weights from Constants.
+	 *
+	 * @return
+	 */
+	public int getMaterialBalance() {
+		return materialBalance;
+	}
+
+	/**
+	 * Returns true if side <code>color</code> has at least two bishops.
+	 *
+	 * @param color
+	 * @return
+	 */
+	public boolean hasBishopPair(int color) {
+		return pieceCounts[color * 6 + BISHOP] >= 2;
+	}
+
+	/**
+	 * Returns how much non pawn material is left, from MAX_PHASE in the
+	 * opening down to 0 with only kings and pawns. Extra promoted pieces can
+	 * push it above MAX_PHASE, so it is capped.
+	 *
+	 * @return
+	 */
+	public int getPhase() {
+		return Math.min(phase, MAX_PHASE);
+	}
+
+	public long getOccupancy(int color) {
+		return occupancy[color];
+	}
+
+	public long getOccupied() {
+		return occupied;
+	}
+
+	public long getKey() {
+		return key;
+	}
+
+	public int getPlyCount() {
+		return plyCount;
+	}
+
+	public void setPlyCount(int plyCount) {
+		this.plyCount = plyCount;
+	}
+
+	public int getHalfmoveClock() {
+		return halfmoveClock;
+	}
+
+	public void setHalfmoveClock(int halfmoveClock) {
+		this.halfmoveClock = halfmoveClock;
+	}
+
+	public int getSideToMove() {
+		return sideToMove;
+	}
+
+	public void setSideToMove(int color) {
+		if (color != sideToMove)
+			key ^= Zobrist.sideKey;
+		sideToMove = color;
+	}
+
+	public int getCastlingRights() {
+		return castlingRights;
+	}
+
+	public void setCastlingRights(int rights) {
+		key ^= Zobrist.castlingKeys[castlingRights] ^ Zobrist.castlingKeys[rights];
+		castlingRights = rights;
+	}
+
+	public int getEnPassantSquare() {
+		return enPassantSquare;
+	}
+
+	public void setEnPassantSquare(int sq) {
+		if (enPassantSquare != NO_SQUARE)
+			key ^= Zobrist.enPassantKeys[colOf(enPassantSquare)];
+		if (sq != NO_SQUARE)
+			key ^= Zobrist.enPassantKeys[colOf(sq)];
+		enPassantSquare = sq;
+	}
+}
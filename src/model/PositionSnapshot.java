@@ -0,0 +1,218 @@
+package model;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Immutable copy of a Position packed into a handful of primitives, about 40
+ * bytes plus the repetition history. A snapshot holds no references to Piece objects or to the
+ * Model, so it can be handed from one thread to another and read by any
+ * number of threads at once. Each thread that wants to play moves on it
+ * inflates its own Position with toPosition.
+ *
+ * <p>
+ * The pieces are stored as the occupied bitboard plus one 4 bit piece code per
+ * occupied square, in square order. A position never has more than 32 pieces,
+ * so the codes fit in two longs. The undo history is not part of a snapshot,
+ * but the hashes of the positions since the last capture or pawn move are,
+ * so a position inflated from it still sees repetitions of earlier ones.
+ */
+public final class PositionSnapshot {
+
+	// State bits: side to move, castling rights, en passant square and
+	// halfmove clock
+	private final static int CASTLING_SHIFT = 1;
+	private final static int EN_PASSANT_SHIFT = 5;
+	private final static int HALFMOVE_SHIFT = 12;
+
+	// En passant value when there is no en passant square
+	private final static int NO_EN_PASSANT = 64;
+
+	private final long occupied;
+
+	// Piece codes of the first 16 and the last 16 occupied squares
+	private final long lowPieces;
+	private final long highPieces;
+
+	private final long key;
+	private final int state;
+	private final int plyCount;
+
+	// Hashes of the earlier positions that can still repeat, oldest first
+	private final long[] history;
+
+	/**
+	 * Takes a snapshot of <code>position</code>. Only the squares that hold a
+	 * piece are visited.
+	 *
+	 * @param position
+	 */
+	public PositionSnapshot(Position position) {
+		long low = 0L;
+		long high = 0L;
+		long pieces = position.occupied;
+		int index = 0;
+		while (pieces != 0) {
+			int sq = Long.numberOfTrailingZeros(pieces);
+			pieces &= pieces - 1;
+			long code = position.mailbox[sq];
+			if (index < 16)
+				low |= code << (index << 2);
+			else
+				high |= code << ((index - 16) << 2);
+			index++;
+		}
+
+		int enPassant = position.enPassantSquare == Position.NO_SQUARE ? NO_EN_PASSANT
+				: position.enPassantSquare;
+
+		occupied = position.occupied;
+		lowPieces = low;
+		highPieces = high;
+		key = position.key;
+		state = position.sideToMove
+				| (position.castlingRights << CASTLING_SHIFT)
+				| (enPassant << EN_PASSANT_SHIFT)
+				| (position.halfmoveClock << HALFMOVE_SHIFT);
+		plyCount = position.plyCount;
+		history = position.getRepeatableHistory();
+	}
+
+	private PositionSnapshot(long occupied, long lowPieces, long highPieces,
+			long key, int state, int plyCount, long[] history) {
+		this.occupied = occupied;
+		this.lowPieces = lowPieces;
+		this.highPieces = highPieces;
+		this.key = key;
+		this.state = state;
+		this.plyCount = plyCount;
+		this.history = history;
+	}
+
+	/**
+	 * Writes this snapshot to <code>out</code> as it is held: five longs and
+	 * two ints, then the length of the history and its hashes.
+	 *
+	 * @param out
+	 * @throws IOException
+	 */
+	public void writeTo(DataOutput out) throws IOException {
+		out.writeLong(occupied);
+		out.writeLong(lowPieces);
+		out.writeLong(highPieces);
+		out.writeLong(key);
+		out.writeInt(state);
+		out.writeInt(plyCount);
+		out.writeInt(history.length);
+		for (int i = 0; i < history.length; i++)
+			out.writeLong(history[i]);
+	}
+
+	/**
+	 * Reads a snapshot written by writeTo. Data that can't have come from a
+	 * position, such as more than 32 pieces or a piece code that isn't one,
+	 * is an IOException like any other broken stream.
+	 *
+	 * @param in
+	 * @return
+	 * @throws IOException
+	 */
+	public static PositionSnapshot readFrom(DataInput in) throws IOException {
+		long occupied = in.readLong();
+		long lowPieces = in.readLong();
+		long highPieces = in.readLong();
+		long key = in.readLong();
+		int state = in.readInt();
+		int plyCount = in.readInt();
+		int historyLength = in.readInt();
+		if (historyLength < 0 || historyLength > 2 * Position.MAX_PLY)
+			throw new IOException("PositionSnapshot.readFrom: bad history length "
+					+ historyLength);
+		long[] history = new long[historyLength];
+		for (int i = 0; i < historyLength; i++)
+			history[i] = in.readLong();
+		PositionSnapshot snapshot = new PositionSnapshot(occupied, lowPieces,
+				highPieces, key, state, plyCount, history);
+
+		// Anything toPosition would index out of bounds with
+		int numPieces = Long.bitCount(occupied);
+		if (numPieces > 32)
+			throw new IOException("PositionSnapshot.readFrom: " + numPieces
+					+ " pieces");
+		for (int i = 0; i < numPieces; i++)
+			if (snapshot.pieceCodeAt(i) > Position.pieceCode(Position.KING,
+					Position.BLACK))
+				throw new IOException("PositionSnapshot.readFrom: bad piece code "
+						+ snapshot.pieceCodeAt(i));
+		int enPassant = (state >>> EN_PASSANT_SHIFT) & 127;
+		if (enPassant > NO_EN_PASSANT)
+			throw new IOException("PositionSnapshot.readFrom: bad en passant square "
+					+ enPassant);
+		return snapshot;
+	}
+
+	/**
+	 * Builds a new mutable Position holding this snapshot. The new position
+	 * belongs to the caller and shares nothing with other threads.
+	 *
+	 * @return
+	 */
+	public Position toPosition() {
+		return new Position(this);
+	}
+
+	/**
+	 * Returns the piece code on the <code>index</code>th occupied square,
+	 * counting from a1.
+	 *
+	 * @param index
+	 * @return
+	 */
+	int pieceCodeAt(int index) {
+		if (index < 16)
+			return (int) (lowPieces >>> (index << 2)) & 15;
+		else
+			return (int) (highPieces >>> ((index - 16) << 2)) & 15;
+	}
+
+	public long getOccupied() {
+		return occupied;
+	}
+
+	public long getKey() {
+		return key;
+	}
+
+	public int getSideToMove() {
+		return state & 1;
+	}
+
+	public int getCastlingRights() {
+		return (state >>> CASTLING_SHIFT) & Position.ALL_CASTLING;
+	}
+
+	public int getEnPassantSquare() {
+		int enPassant = (state >>> EN_PASSANT_SHIFT) & 127;
+		return enPassant == NO_EN_PASSANT ? Position.NO_SQUARE : enPassant;
+	}
+
+	public int getHalfmoveClock() {
+		return state >>> HALFMOVE_SHIFT;
+	}
+
+	public int getPlyCount() {
+		return plyCount;
+	}
+
+	/**
+	 * Returns the hashes of the earlier positions since the last capture or
+	 * pawn move, oldest first. The array is shared, so it must not be
+	 * changed.
+	 *
+	 * @return
+	 */
+	long[] getHistory() {
+		return history;
+	}
+}
@@ -0,0 +1,50 @@
+package model;
+
+/**
+ * The part of a Position that a move destroys and that cannot be worked out
+ * again from the move itself. Position keeps a fixed array of these, one per
+ * nested move, and fills them in place so making and unmaking a move never
+ * allocates.
+ */
+public class UndoRecord {
+
+	// Piece code of the captured piece, or Position.EMPTY
+	int captured;
+	int castlingRights;
+	int enPassantSquare;
+	long key;
+	int halfmoveClock;
+
+	/**
+	 * Copies every field of <code>other</code> into this record.
+	 *
+	 * @param other
+	 */
+	void copyFrom(UndoRecord other) {
+		captured = other.captured;
+		castlingRights = other.castlingRights;
+		enPassantSquare = other.enPassantSquare;
+		key = other.key;
+		halfmoveClock = other.halfmoveClock;
+	}
+
+	public int getCaptured() {
+		return captured;
+	}
+
+	public int getCastlingRights() {
+		return castlingRights;
+	}
+
+	public int getEnPassantSquare() {
+		return enPassantSquare;
+	}
+
+	public long getKey() {
+		return key;
+	}
+
+	public int getHalfmoveClock() {
+		return halfmoveClock;
+	}
+}
@@ -0,0 +1,60 @@
+package model;
+
+import java.util.Random;
+
+/**
+ * Random keys used to build the 64 bit Zobrist hash of a Position. The hash
+ * is the XOR of one key per piece on the board, plus keys for the side to
+ * move, the castling rights and the en passant file. Because XOR is its own
+ * inverse, Position updates the hash incrementally as pieces come and go.
+ *
+ * <p>
+ * The generator is seeded with a constant so keys are identical from run to
+ * run, which keeps hashes comparable across games and log files.
+ */
+public class Zobrist {
+
+	private final static long seed = 0x5DEECE66DL;
+
+	// Indexed by [piece code][square]
+	final static long[][] pieceKeys = new long[Position.NUM_PIECE_CODES][64];
+
+	// XORed in when it is black to move
+	final static long sideKey;
+
+	// Indexed by the 4 bit castling rights mask
+	final static long[] castlingKeys = new long[16];
+
+	// Indexed by the column of the en passant target square
+	final static long[] enPassantKeys = new long[8];
+
+	static {
+		Random random = new Random(seed);
+		for (int code = 0; code < Position.NUM_PIECE_CODES; code++)
+			for (int sq = 0; sq < 64; sq++)
+				pieceKeys[code][sq] = random.nextLong();
+		sideKey = random.nextLong();
+
+		// No rights at all hashes to 0 so a bare board hashes to 0
+		for (int i = 1; i < 16; i++)
+			castlingKeys[i] = random.nextLong();
+		for (int i = 0; i < 8; i++)
+			enPassantKeys[i] = random.nextLong();
+	}
+
+	public static long getPieceKey(int code, int sq) {
+		return pieceKeys[code][sq];
+	}
+
+	public static long getSideKey() {
+		return sideKey;
+	}
+
+	public static long getCastlingKey(int castlingRights) {
+		return castlingKeys[castlingRights];
+	}
+
+	public static long getEnPassantKey(int col) {
+		return enPassantKeys[col];
+	}
+}
@@ -0,0 +1,300 @@
+package utils;
+
+/**
+ * Attack tables for bitboards with square = row * 8 + col (a1 = 0, see
+ * model.Position). Knights, kings and pawns get one precomputed attack set per
+ * square. Rooks and bishops use magic bitboards: the blockers on the relevant
+ * rays are multiplied by a per square magic number, and the top bits of the
+ * product index a table holding the attack set for exactly that blocker
+ * layout. Every lookup is therefore a mask, a multiply, a shift and a load.
+ *
+ * <p>
+ * The tables are built once when the class is loaded. The magic numbers below
+ * were found with a random search over sparse 64 bit numbers, keeping the
+ * first one per square that sends every blocker layout to a slot of its own
+ * (or to a slot shared only with layouts that give the same attack set).
+ */
+public class Bitboards {
+
+	private final static int[][] rookDirections = { { 1, 0 }, { -1, 0 },
+			{ 0, 1 }, { 0, -1 } };
+	private final static int[][] bishopDirections = { { 1, 1 }, { 1, -1 },
+			{ -1, 1 }, { -1, -1 } };
+	private final static int[][] knightOffsets = { { 2, 1 }, { 2, -1 },
+			{ -2, 1 }, { -2, -1 }, { 1, 2 }, { 1, -2 }, { -1, 2 }, { -1, -2 } };
+	private final static int[][] kingOffsets = { { 1, 1 }, { 1, 0 },
+			{ 1, -1 }, { 0, 1 }, { 0, -1 }, { -1, 1 }, { -1, 0 }, { -1, -1 } };
+
+	private final static long[] knightAttacks = new long[64];
+	private final static long[] kingAttacks = new long[64];
+
+	// Squares attacked by a pawn of each color, indexed [color][square]
+	private final static long[][] pawnAttacks = new long[2][64];
+
+	// Relevant blocker squares, magic numbers, shifts and attack sets
+	private final static long[] rookMasks = new long[64];
+	private final static int[] rookShifts = new int[64];
+	private final static long[][] rookTable = new long[64][];
+
+	private final static long[] bishopMasks = new long[64];
+	private final static int[] bishopShifts = new int[64];
+	private final static long[][] bishopTable = new long[64][];
+
+	// Squares strictly between two squares on a common line, and the whole
+	// board-wide line through them. Zero if the squares don't share a line.
+	private final static long[][] between = new long[64][64];
+	private final static long[][] line = new long[64][64];
+
+	private final static long[] rookMagics = {
+			0xA200120020804100L, 0x00C0001000402000L, 0x4200104200200882L,
+			0x41000B0010000420L, 0x6080080002040080L, 0x0100080204000100L,
+			0x0080010000800200L, 0x9080110000E04D80L, 0x0041002080010048L,
+			0x1400402010004001L, 0x0803002001410014L, 0x0020040200410080L,
+			0x0C29808008002400L, 0x1044800400800200L, 0x0004001210210814L,
+			0x0001800440800100L, 0x4080084000201040L, 0x083000404000200AL,
+			0x8030008020008010L, 0x00D0008008008010L, 0x020A828028001400L,
+			0x0000080104102040L, 0x0200010100020004L, 0x4102060001004A84L,
+			0x4440802080004000L, 0x0020500040002000L, 0x1000100080200081L,
+			0x1050500180480080L, 0x0000040080800800L, 0x0024020080800400L,
+			0x2424010400420810L, 0x0000345200042881L, 0x8080002008400041L,
+			0x0005804004802000L, 0x0001802004801000L, 0x0018001000800C80L,
+			0x4080080005001101L, 0x0080400488012010L, 0x0000100104008802L,
+			0x4060104502001294L, 0x0014208040028000L, 0x0210004020014000L,
+			0x8390008020048011L, 0x3400201001010008L, 0x10020011040A0020L,
+			0xA902001028120014L, 0x0C00900208040001L, 0x012001004086000CL,
+			0x0480002000401040L, 0x28020C8040210200L, 0x0000A00080700180L,
+			0x0810008408001080L, 0x1800041100080100L, 0x0420800200040080L,
+			0x0210100142880400L, 0x0000800100204080L, 0x0080002449009081L,
+			0x2021004086001422L, 0x020200814112200AL, 0x0000050010002009L,
+			0x0002000804102002L, 0x8802009008410402L, 0x42120003608C0802L,
+			0x808020440091002AL };
+
+	private final static long[] bishopMagics = {
+			0x0108580084140423L, 0x0010101101082000L, 0xA044081883012000L,
+			0x1004040084000800L, 0x94440D2044000190L, 0x0716090420000000L,
+			0x00242201242080A4L, 0x4002240408843022L, 0x0202101090008080L,
+			0x5880200A02064114L, 0x0020120806002120L, 0x1840042401882428L,
+			0x0000242420404800L, 0x0060420842080250L, 0x000001008210C090L,
+			0x0040008848021011L, 0x208B046002040800L, 0x84024048100400A0L,
+			0x8010000844820810L, 0x0004000804240888L, 0x0404008211200008L,
+			0x02610062004A4210L, 0x0020410212022005L, 0x404200004A1A0100L,
+			0x0882100148A0C820L, 0x134A2000104C6081L, 0x3004020004080810L,
+			0x4001004024040002L, 0x1124040100410040L, 0x02004A8003101000L,
+			0x8010A10204010840L, 0x0010860000222210L, 0x0402A8042040300AL,
+			0x00A0820900200840L, 0x0000280800010600L, 0x0380020080080082L,
+			0x0810088200242200L, 0x080C050C08121000L, 0x0008418910C39800L,
+			0x04081220A8028084L, 0x80840208C4084002L, 0x0002083442001400L,
+			0x848A010048000111L, 0x8040004202200801L, 0x0058080104002040L,
+			0x4001100102000340L, 0x0204104400400100L, 0x0010110841180180L,
+			0x4002080E08440000L, 0x010104A684200000L, 0x041410208C101460L,
+			0x0000201084040200L, 0x2100022044241001L, 0x0030584810A42002L,
+			0x02A0484208004000L, 0x1810010105121401L, 0x0004108824100400L,
+			0x01100200A2080240L, 0x00C0411241044110L, 0x002B002082050402L,
+			0x0040000004104420L, 0x8101011020010110L, 0x0020400821210200L,
+			0x8010014808008028L };
+
+	static {
+		for (int sq = 0; sq < 64; sq++) {
+			knightAttacks[sq] = stepAttacks(sq, knightOffsets);
+			kingAttacks[sq] = stepAttacks(sq, kingOffsets);
+			pawnAttacks[0][sq] = stepAttacks(sq, new int[][] { { 1, -1 },
+					{ 1, 1 } });
+			pawnAttacks[1][sq] = stepAttacks(sq, new int[][] { { -1, -1 },
+					{ -1, 1 } });
+		}
+
+		for (int sq = 0; sq < 64; sq++) {
+			rookMasks[sq] = relevantBlockers(sq, rookDirections);
+			rookShifts[sq] = 64 - Long.bitCount(rookMasks[sq]);
+			rookTable[sq] = fillTable(sq, rookMasks[sq], rookMagics[sq],
+					rookShifts[sq], rookDirections);
+
+			bishopMasks[sq] = relevantBlockers(sq, bishopDirections);
+			bishopShifts[sq] = 64 - Long.bitCount(bishopMasks[sq]);
+			bishopTable[sq] = fillTable(sq, bishopMasks[sq], bishopMagics[sq],
+					bishopShifts[sq], bishopDirections);
+		}
+
+		for (int from = 0; from < 64; from++) {
+			for (int to = 0; to < 64; to++) {
+				long toBit = 1L << to;
+				if ((rookAttacks(from, 0L) & toBit) != 0) {
+					between[from][to] = rookAttacks(from, toBit)
+							& rookAttacks(to, 1L << from);
+					line[from][to] = (rookAttacks(from, 0L) & rookAttacks(to,
+							0L)) | (1L << from) | toBit;
+				} else if ((bishopAttacks(from, 0L) & toBit) != 0) {
+					between[from][to] = bishopAttacks(from, toBit)
+							& bishopAttacks(to, 1L << from);
+					line[from][to] = (bishopAttacks(from, 0L) & bishopAttacks(
+							to, 0L)) | (1L << from) | toBit;
+				}
+			}
+		}
+	}
+
+	public static long knightAttacks(int sq) {
+		return knightAttacks[sq];
+	}
+
+	public static long kingAttacks(int sq) {
+		return kingAttacks[sq];
+	}
+
+	/**
+	 * Returns the squares a pawn of color <code>color</code> on square
+	 * <code>sq</code> attacks, whether or not anything stands there.
+	 *
+	 * @param sq
+	 * @param color
+	 * @return
+	 */
+	public static long pawnAttacks(int sq, int color) {
+		return pawnAttacks[color][sq];
+	}
+
+	/**
+	 * Returns the squares a rook on <code>sq</code> attacks, given the
+	 * occupied squares <code>occupied</code>. The first blocker on each ray
+	 * is included, whatever its color.
+	 *
+	 * @param sq
+	 * @param occupied
+	 * @return
+	 */
+	public static long rookAttacks(int sq, long occupied) {
+		return rookTable[sq][(int) (((occupied & rookMasks[sq]) * rookMagics[sq]) >>> rookShifts[sq])];
+	}
+
+	/**
+	 * Returns the squares a bishop on <code>sq</code> attacks, given the
+	 * occupied squares <code>occupied</code>.
+	 *
+	 * @param sq
+	 * @param occupied
+	 * @return
+	 */
+	public static long bishopAttacks(int sq, long occupied) {
+		return bishopTable[sq][(int) (((occupied & bishopMasks[sq]) * bishopMagics[sq]) >>> bishopShifts[sq])];
+	}
+
+	public static long queenAttacks(int sq, long occupied) {
+		return rookAttacks(sq, occupied) | bishopAttacks(sq, occupied);
+	}
+
+	/**
+	 * Returns the squares strictly between <code>from</code> and
+	 * <code>to</code> if they share a row, column or diagonal, otherwise 0.
+	 *
+	 * @param from
+	 * @param to
+	 * @return
+	 */
+	public static long between(int from, int to) {
+		return between[from][to];
+	}
+
+	/**
+	 * Returns every square of the row, column or diagonal through both
+	 * <code>from</code> and <code>to</code>, edge to edge, or 0 if they don't
+	 * share one.
+	 *
+	 * @param from
+	 * @param to
+	 * @return
+	 */
+	public static long line(int from, int to) {
+		return line[from][to];
+	}
+
+	/**
+	 * Returns the squares reached by one step with each offset in
+	 * <code>offsets</code> that stays on the board.
+	 */
+	private static long stepAttacks(int sq, int[][] offsets) {
+		long result = 0L;
+		int row = sq >>> 3;
+		int col = sq & 7;
+		for (int i = 0; i < offsets.length; i++) {
+			int newRow = row + offsets[i][0];
+			int newCol = col + offsets[i][1];
+			if (newRow >= 0 && newRow < 8 && newCol >= 0 && newCol < 8)
+				result |= 1L << (newRow * 8 + newCol);
+		}
+		return result;
+	}
+
+	/**
+	 * Walks each ray from <code>sq</code> and stops on the first occupied
+	 * square, which is included. Only used to build the tables.
+	 */
+	private static long slidingAttacks(int sq, long occupied, int[][] directions) {
+		long result = 0L;
+		for (int i = 0; i < directions.length; i++) {
+			int row = (sq >>> 3) + directions[i][0];
+			int col = (sq & 7) + directions[i][1];
+			while (row >= 0 && row < 8 && col >= 0 && col < 8) {
+				long bit = 1L << (row * 8 + col);
+				result |= bit;
+				if ((occupied & bit) != 0)
+					break;
+				row += directions[i][0];
+				col += directions[i][1];
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the squares on the rays from <code>sq</code> whose occupancy
+	 * changes the attack set. The last square of each ray never does, since
+	 * the ray stops there anyway.
+	 */
+	private static long relevantBlockers(int sq, int[][] directions) {
+		long result = 0L;
+		for (int i = 0; i < directions.length; i++) {
+			int row = (sq >>> 3) + directions[i][0];
+			int col = (sq & 7) + directions[i][1];
+			while (row + directions[i][0] >= 0 && row + directions[i][0] < 8
+					&& col + directions[i][1] >= 0
+					&& col + directions[i][1] < 8) {
+				result |= 1L << (row * 8 + col);
+				row += directions[i][0];
+				col += directions[i][1];
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the <code>index</code>th subset of the squares in
+	 * <code>mask</code>, using the bits of index to pick squares.
+	 */
+	private static long blockerSubset(int index, long mask) {
+		long result = 0L;
+		int bit = 0;
+		while (mask != 0) {
+			long lowest = mask & -mask;
+			mask &= mask - 1;
+			if ((index & (1 << bit++)) != 0)
+				result |= lowest;
+		}
+		return result;
+	}
+
+	/**
+	 * Fills the attack table of square <code>sq</code> by walking the rays
+	 * once for every subset of the relevant blockers.
+	 */
+	private static long[] fillTable(int sq, long mask, long magic, int shift,
+			int[][] directions) {
+		int numSubsets = 1 << Long.bitCount(mask);
+		long[] result = new long[1 << (64 - shift)];
+		for (int i = 0; i < numSubsets; i++) {
+			long blockers = blockerSubset(i, mask);
+			result[(int) ((blockers * magic) >>> shift)] = slidingAttacks(sq,
+					blockers, directions);
+		}
+		return result;
+	}
+}
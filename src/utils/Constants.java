@@ -6,6 +6,9 @@ import model.Piece;
 public class Constants {
 	public enum GameMode{pvp,pvc,cvp,cvc}
 	public enum LogLevel{INFO,DEBUG,ERROR}
+	public enum MobilityMode{PSEUDO_LEGAL,LEGAL}
+	public enum AttackMode{ON_DEMAND,INCREMENTAL}
+	public enum GameStatus{ONGOING,CHECKMATE,STALEMATE,DRAW}
 
 	// Weights
 	private final static int pawnWeight = 1;
@@ -61,6 +64,19 @@ public class Constants {
 	private final static int checkMateScore = 1000000;
 	private final static int drawScore = 0;
 	
+	// Transposition table size in megabytes
+	private static int defaultHashSizeMB = 16;
+	private static int hashSizeMB = defaultHashSizeMB;
+
+	// Threads the AI searches with, the main search plus helpers
+	private static int defaultSearchThreads = 1;
+	private static int searchThreads = defaultSearchThreads;
+
+	// Worker processes the AI spreads its root moves over, 0 to search in
+	// this process only
+	private static int defaultClusterWorkers = 0;
+	private static int clusterWorkers = defaultClusterWorkers;
+
 	// Depth constants
 	private static int maxDepth = 6;
 	private static int minDepth = 1;
@@ -79,8 +95,24 @@ public class Constants {
 	private static LogLevel defaultLogLevel = LogLevel.INFO;
 	private static LogLevel logLevel = defaultLogLevel;
 	
+	// Mobility constants. LEGAL counts exactly the legal moves. PSEUDO_LEGAL
+	// counts the squares each piece attacks or can push to that don't hold
+	// one of its own pieces, ignoring pins and checks. It is cheaper, but
+	// quiescence search can then no longer tell a stalemate at stand pat.
+	private static MobilityMode defaultMobilityMode = MobilityMode.LEGAL;
+	private static MobilityMode mobilityMode = defaultMobilityMode;
+
+	// Attack constants. ON_DEMAND works out attacks from the bitboards when
+	// asked. INCREMENTAL makes positions keep the attackers of every square
+	// up to date through make/unmake, which answers attack queries with one
+	// lookup but makes every move more expensive. Positions pick the mode up
+	// when they are created.
+	private static AttackMode defaultAttackMode = AttackMode.ON_DEMAND;
+	private static AttackMode attackMode = defaultAttackMode;
+
 	// Miscellaneous
 	private static final String openingGameText = "Welcome to the Quiet Intrique chess engine.";
+	private final static String startFen = "rnbqkbnr/pppppppp/8/8/8/8/PPPPPPPP/RNBQKBNR w KQkq - 0 1";
 	private final static double killerMoveScore = -0.1;
 	private final static int nullMoveReduction = 2;
 	
@@ -104,6 +136,10 @@ public class Constants {
 		return result;
 	}
 
+	public static String getStartFen(){
+		return startFen;
+	}
+
 	public static char getPawnChar(){
 		return pawn;
 	}
@@ -425,5 +461,57 @@ public class Constants {
 		Constants.logLevel = logLevel;
 	}
 
+	public static MobilityMode getMobilityMode() {
+		return mobilityMode;
+	}
+
+	public static void setMobilityMode(MobilityMode mobilityMode) {
+		Constants.mobilityMode = mobilityMode;
+	}
+
+	public static int getHashSizeMB() {
+		return hashSizeMB;
+	}
+
+	public static void setHashSizeMB(int hashSizeMB) {
+		Constants.hashSizeMB = hashSizeMB;
+	}
+
+	public static int getDefaultHashSizeMB() {
+		return defaultHashSizeMB;
+	}
+
+	public static int getSearchThreads() {
+		return searchThreads;
+	}
+
+	public static void setSearchThreads(int searchThreads) {
+		Constants.searchThreads = searchThreads;
+	}
+
+	public static int getDefaultSearchThreads() {
+		return defaultSearchThreads;
+	}
+
+	public static int getClusterWorkers() {
+		return clusterWorkers;
+	}
+
+	public static void setClusterWorkers(int clusterWorkers) {
+		Constants.clusterWorkers = clusterWorkers;
+	}
+
+	public static int getDefaultClusterWorkers() {
+		return defaultClusterWorkers;
+	}
+
+	public static AttackMode getAttackMode() {
+		return attackMode;
+	}
+
+	public static void setAttackMode(AttackMode attackMode) {
+		Constants.attackMode = attackMode;
+	}
+
 
 }